@@ -0,0 +1,199 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.message;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Outbound metrics of one client session
+ */
+@XmlRootElement
+public class ClientMetricsMessage {
+    
+    private int mmsi;
+    private long ringLag;
+    private int pending;
+    private int inFlight;
+    private long enqueued;
+    private long sent;
+    private long dropped;
+    private long conflated;
+    private long bytesSent;
+    private double latency50;
+    private double latency99;
+    private double latency999;
+    private double latencyMax;
+    
+    public ClientMetricsMessage() {
+        
+    }
+
+    /**
+     * MMSI reserved by the client or -1
+     * @return
+     */
+    public int getMmsi() {
+        return mmsi;
+    }
+
+    public void setMmsi(int mmsi) {
+        this.mmsi = mmsi;
+    }
+
+    /**
+     * Frames published to the ring not yet read by the session, including frames not for the client
+     * @return
+     */
+    public long getRingLag() {
+        return ringLag;
+    }
+
+    public void setRingLag(long ringLag) {
+        this.ringLag = ringLag;
+    }
+
+    /**
+     * Priority and conflated frames waiting to be sent
+     * @return
+     */
+    public int getPending() {
+        return pending;
+    }
+
+    public void setPending(int pending) {
+        this.pending = pending;
+    }
+
+    /**
+     * Writes not yet completed
+     * @return
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    public void setInFlight(int inFlight) {
+        this.inFlight = inFlight;
+    }
+
+    /**
+     * Frames accepted for the client
+     * @return
+     */
+    public long getEnqueued() {
+        return enqueued;
+    }
+
+    public void setEnqueued(long enqueued) {
+        this.enqueued = enqueued;
+    }
+
+    /**
+     * Frames sent
+     * @return
+     */
+    public long getSent() {
+        return sent;
+    }
+
+    public void setSent(long sent) {
+        this.sent = sent;
+    }
+
+    /**
+     * Frames lost because the session fell behind
+     * @return
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    public void setDropped(long dropped) {
+        this.dropped = dropped;
+    }
+
+    /**
+     * Position reports replaced by a newer report before they were sent
+     * @return
+     */
+    public long getConflated() {
+        return conflated;
+    }
+
+    public void setConflated(long conflated) {
+        this.conflated = conflated;
+    }
+
+    /**
+     * Bytes of encoded messages sent
+     * @return
+     */
+    public long getBytesSent() {
+        return bytesSent;
+    }
+
+    public void setBytesSent(long bytesSent) {
+        this.bytesSent = bytesSent;
+    }
+
+    /**
+     * Milliseconds from ingest to completed write, median
+     * @return
+     */
+    public double getLatency50() {
+        return latency50;
+    }
+
+    public void setLatency50(double latency50) {
+        this.latency50 = latency50;
+    }
+
+    /**
+     * Milliseconds from ingest to completed write, 99th percentile
+     * @return
+     */
+    public double getLatency99() {
+        return latency99;
+    }
+
+    public void setLatency99(double latency99) {
+        this.latency99 = latency99;
+    }
+
+    /**
+     * Milliseconds from ingest to completed write, 99.9th percentile
+     * @return
+     */
+    public double getLatency999() {
+        return latency999;
+    }
+
+    public void setLatency999(double latency999) {
+        this.latency999 = latency999;
+    }
+
+    /**
+     * Milliseconds from ingest to completed write, maximum
+     * @return
+     */
+    public double getLatencyMax() {
+        return latencyMax;
+    }
+
+    public void setLatencyMax(double latencyMax) {
+        this.latencyMax = latencyMax;
+    }
+
+}
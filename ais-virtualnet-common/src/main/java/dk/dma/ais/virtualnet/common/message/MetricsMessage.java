@@ -0,0 +1,172 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.message;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Outbound metrics of the connected clients
+ */
+@XmlRootElement
+public class MetricsMessage {
+    
+    private List<ClientMetricsMessage> clients = new ArrayList<>();
+    private double latency50;
+    private double latency99;
+    private double latency999;
+    private double latencyMax;
+    private int tokens;
+    private long tokensExpired;
+    private long tokenSweeps;
+    private double tokenSweepTime;
+    private double tokenSweepTimeMax;
+    private long sessionErrors;
+    
+    public MetricsMessage() {
+        
+    }
+
+    public List<ClientMetricsMessage> getClients() {
+        return clients;
+    }
+
+    public void setClients(List<ClientMetricsMessage> clients) {
+        this.clients = clients;
+    }
+
+    /**
+     * Milliseconds from ingest to completed write for all clients, median
+     * @return
+     */
+    public double getLatency50() {
+        return latency50;
+    }
+
+    public void setLatency50(double latency50) {
+        this.latency50 = latency50;
+    }
+
+    /**
+     * Milliseconds from ingest to completed write for all clients, 99th percentile
+     * @return
+     */
+    public double getLatency99() {
+        return latency99;
+    }
+
+    public void setLatency99(double latency99) {
+        this.latency99 = latency99;
+    }
+
+    /**
+     * Milliseconds from ingest to completed write for all clients, 99.9th percentile
+     * @return
+     */
+    public double getLatency999() {
+        return latency999;
+    }
+
+    public void setLatency999(double latency999) {
+        this.latency999 = latency999;
+    }
+
+    /**
+     * Milliseconds from ingest to completed write for all clients, maximum
+     * @return
+     */
+    public double getLatencyMax() {
+        return latencyMax;
+    }
+
+    public void setLatencyMax(double latencyMax) {
+        this.latencyMax = latencyMax;
+    }
+
+    /**
+     * Number of live authentication tokens
+     * @return
+     */
+    public int getTokens() {
+        return tokens;
+    }
+
+    public void setTokens(int tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * Number of authentication tokens removed after expiring
+     * @return
+     */
+    public long getTokensExpired() {
+        return tokensExpired;
+    }
+
+    public void setTokensExpired(long tokensExpired) {
+        this.tokensExpired = tokensExpired;
+    }
+
+    /**
+     * Number of sweeps removing expired tokens
+     * @return
+     */
+    public long getTokenSweeps() {
+        return tokenSweeps;
+    }
+
+    public void setTokenSweeps(long tokenSweeps) {
+        this.tokenSweeps = tokenSweeps;
+    }
+
+    /**
+     * Milliseconds spent sweeping expired tokens, in total
+     * @return
+     */
+    public double getTokenSweepTime() {
+        return tokenSweepTime;
+    }
+
+    public void setTokenSweepTime(double tokenSweepTime) {
+        this.tokenSweepTime = tokenSweepTime;
+    }
+
+    /**
+     * Milliseconds spent sweeping expired tokens, longest sweep
+     * @return
+     */
+    public double getTokenSweepTimeMax() {
+        return tokenSweepTimeMax;
+    }
+
+    public void setTokenSweepTimeMax(double tokenSweepTimeMax) {
+        this.tokenSweepTimeMax = tokenSweepTimeMax;
+    }
+
+    /**
+     * Number of sessions closed because sending to them failed
+     * @return
+     */
+    public long getSessionErrors() {
+        return sessionErrors;
+    }
+
+    public void setSessionErrors(long sessionErrors) {
+        this.sessionErrors = sessionErrors;
+    }
+
+}
@@ -0,0 +1,78 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.message;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * Area a virtual transponder wants to receive traffic from. Sent to the server over the websocket connection, and
+ * sent again when the transponder has moved.
+ */
+@XmlRootElement
+public class Subscription {
+
+    private Double lat;
+    private Double lon;
+    private double radius;
+
+    public Subscription() {
+
+    }
+
+    public Subscription(Double lat, Double lon, double radius) {
+        this.lat = lat;
+        this.lon = lon;
+        this.radius = radius;
+    }
+
+    /**
+     * Latitude of the center. Null when the transponder does not yet know its own position.
+     * 
+     * @return
+     */
+    public Double getLat() {
+        return lat;
+    }
+
+    public void setLat(Double lat) {
+        this.lat = lat;
+    }
+
+    public Double getLon() {
+        return lon;
+    }
+
+    public void setLon(Double lon) {
+        this.lon = lon;
+    }
+
+    /**
+     * Radius in meters
+     * 
+     * @return
+     */
+    public double getRadius() {
+        return radius;
+    }
+
+    public void setRadius(double radius) {
+        this.radius = radius;
+    }
+
+    public boolean hasPosition() {
+        return lat != null && lon != null;
+    }
+
+}
@@ -25,6 +25,9 @@ import dk.dma.ais.virtualnet.common.table.TargetTableEntry;
 public class TargetTableMessage {
     
     private List<TargetTableEntry> targets = new ArrayList<>();
+    private long version;
+    private boolean delta;
+    private List<Integer> expired = new ArrayList<>();
     
     public TargetTableMessage() {
         
@@ -38,4 +41,40 @@ public class TargetTableMessage {
         this.targets = targets;
     }
     
+    /**
+     * Version of the target table, to be given when asking for changes
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+    
+    public void setVersion(long version) {
+        this.version = version;
+    }
+    
+    /**
+     * If the message only holds the changes since a given version, otherwise it holds the full table
+     * @return
+     */
+    public boolean isDelta() {
+        return delta;
+    }
+    
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+    
+    /**
+     * MMSI of targets removed from the table since the given version
+     * @return
+     */
+    public List<Integer> getExpired() {
+        return expired;
+    }
+    
+    public void setExpired(List<Integer> expired) {
+        this.expired = expired;
+    }
+    
 }
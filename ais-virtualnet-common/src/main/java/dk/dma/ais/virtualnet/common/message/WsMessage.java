@@ -14,6 +14,8 @@
  */
 package dk.dma.ais.virtualnet.common.message;
 
+import java.util.List;
+
 import javax.xml.bind.annotation.XmlRootElement;
 
 import dk.dma.ais.packet.AisPacket;
@@ -25,8 +27,35 @@ import dk.dma.ais.packet.AisPacket;
 @XmlRootElement
 public class WsMessage {
     
+    /**
+     * Capability announced by clients that can unpack batched messages
+     */
+    public static final String CAPABILITY_BATCH = "batch";
+    
+    /**
+     * Capability announced by clients that can receive packets in binary frames
+     */
+    public static final String CAPABILITY_BINARY = "binary";
+    
+    /**
+     * Capability announced by clients that want the server to send their subscription back when applied, telling
+     * that the traffic after it is filtered on the subscription
+     */
+    public static final String CAPABILITY_FILTER = "filter";
+    
+    /**
+     * Capability announced by clients that want the sequence numbers to resume their session from
+     */
+    public static final String CAPABILITY_RESUME = "resume";
+    
     private String packet;
     private String authToken;
+    private List<WsMessage> batch;
+    private List<String> capabilities;
+    private Subscription subscription;
+    private Long ingestTime;
+    private Long timestamp;
+    private Long sequence;
     
     public WsMessage() {
         
@@ -51,5 +80,81 @@ public class WsMessage {
     public void setAuthToken(String authToken) {
         this.authToken = authToken;
     }
+    
+    /**
+     * Messages sent together in one frame
+     * @return
+     */
+    public List<WsMessage> getBatch() {
+        return batch;
+    }
+    
+    public void setBatch(List<WsMessage> batch) {
+        this.batch = batch;
+    }
+    
+    /**
+     * Protocol extensions supported by the sender
+     * @return
+     */
+    public List<String> getCapabilities() {
+        return capabilities;
+    }
+    
+    public void setCapabilities(List<String> capabilities) {
+        this.capabilities = capabilities;
+    }
+    
+    public boolean hasCapability(String capability) {
+        return capabilities != null && capabilities.contains(capability);
+    }
+    
+    /**
+     * Area the client wants to receive traffic from
+     * @return
+     */
+    public Subscription getSubscription() {
+        return subscription;
+    }
+    
+    public void setSubscription(Subscription subscription) {
+        this.subscription = subscription;
+    }
+    
+    /**
+     * Time in milliseconds on the server clock when the packet was received by the server, if traced
+     * @return
+     */
+    public Long getIngestTime() {
+        return ingestTime;
+    }
+    
+    public void setIngestTime(Long ingestTime) {
+        this.ingestTime = ingestTime;
+    }
+    
+    /**
+     * Time in milliseconds of the packet, for packets sent without the sentences carrying the time
+     * @return
+     */
+    public Long getTimestamp() {
+        return timestamp;
+    }
+    
+    public void setTimestamp(Long timestamp) {
+        this.timestamp = timestamp;
+    }
+    
+    /**
+     * Sequence number of the server to resume the session from, sent when everything before it has been sent
+     * @return
+     */
+    public Long getSequence() {
+        return sequence;
+    }
+    
+    public void setSequence(Long sequence) {
+        this.sequence = sequence;
+    }
 
 }
@@ -0,0 +1,66 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.table;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The last position and static packets of a target, copied from the {@link TargetTable}
+ */
+@Immutable
+public final class LastPackets {
+
+    private final int mmsi;
+
+    private final String position;
+
+    private final String staticReport;
+
+    private final String staticPartB;
+
+    LastPackets(int mmsi, String position, String staticReport, String staticPartB) {
+        this.mmsi = mmsi;
+        this.position = position;
+        this.staticReport = staticReport;
+        this.staticPartB = staticPartB;
+    }
+
+    public int getMmsi() {
+        return mmsi;
+    }
+
+    public String getPosition() {
+        return position;
+    }
+
+    /**
+     * Static and voyage data or part A of class B static data report
+     * 
+     * @return
+     */
+    public String getStaticReport() {
+        return staticReport;
+    }
+
+    /**
+     * Part B of class B static data report
+     * 
+     * @return
+     */
+    public String getStaticPartB() {
+        return staticPartB;
+    }
+
+}
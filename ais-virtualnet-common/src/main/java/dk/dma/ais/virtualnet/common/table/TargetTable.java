@@ -14,32 +14,172 @@
  */
 package dk.dma.ais.virtualnet.common.table;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import net.jcip.annotations.ThreadSafe;
 import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisMessage24;
 import dk.dma.ais.message.AisStaticCommon;
+import dk.dma.ais.message.AisTargetType;
 import dk.dma.ais.message.IVesselPositionMessage;
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.virtualnet.common.message.TargetTableMessage;
+import dk.dma.enav.model.geometry.Position;
 
 /**
- * Simple table of AIS vessel targets
+ * Simple table of AIS vessel targets. Targets are kept in an open addressing table keyed by MMSI, with the fields
+ * in parallel primitive arrays. The table has a single writer calling {@link #update(AisPacket)}, while reading can
+ * be done from any thread.
+ * <p>
+ * Every change to the table is given a new version, so readers can ask for the targets changed since a version they
+ * have seen.
+ * <p>
+ * Targets expire a configurable time after their last message, depending on the type of target. Expiry is driven by
+ * the writer through a timing wheel with one bucket per second, so only targets due to expire are inspected. When
+ * there are no updates, {@link #cleanup()} takes over the writer to turn the wheel.
+ * <p>
+ * The table can also keep the last position and static packets of each target, which then expire with the target.
  */
 @ThreadSafe
 public class TargetTable {
-    
-    private final ConcurrentHashMap<Integer, TargetTableEntry> targets = new ConcurrentHashMap<>();
-    
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * Number of removed targets remembered for readers asking for changes
+     */
+    private static final int REMOVED_LOG_SIZE = 16384;
+
+    /**
+     * Number of buckets in the timing wheel, each covering one second. Targets living longer than a turn of the wheel
+     * are visited once per turn.
+     */
+    private static final int WHEEL_SIZE = 1024;
+
+    /**
+     * First bytes of a snapshot, followed by the snapshot format version
+     */
+    private static final int SNAPSHOT_MAGIC = 0x41564e54; // AVNT
+
+    private static final int SNAPSHOT_FORMAT = 1;
+
+    private volatile Slots slots;
+
+    /**
+     * If the last packets of the targets are kept
+     */
+    private final boolean keepPackets;
+
+    /**
+     * Held by the thread writing to the table, so a cleanup never runs at the same time as an update
+     */
+    private final AtomicBoolean writing = new AtomicBoolean();
+
+    /**
+     * Number of targets, only changed by the writer
+     */
+    private volatile int size;
+
+    /**
+     * Number of removed slots not yet reused, only used by the writer
+     */
+    private int removed;
+
+    /**
+     * Time to live in seconds by target type, and for targets of unknown type
+     */
+    private final int[] ttls = new int[AisTargetType.values().length];
+    private final int defaultTtl;
+
+    /**
+     * First slot of each bucket of the timing wheel, only used by the writer. A target is put in the bucket of its
+     * expiry when added, and only moved when the bucket is reached and the target has been updated since.
+     */
+    private final int[] wheel = new int[WHEEL_SIZE];
+
+    /**
+     * Second of the last wheel advance, only used by the writer
+     */
+    private int wheelTime = Slots.seconds(System.currentTimeMillis());
+
+    /**
+     * Version of the last change. Versions start from the current time in microseconds, so versions from before a
+     * restart of the server are older than all versions after.
+     */
+    private volatile long version = System.currentTimeMillis() * 1000;
+
+    private final RemovedLog removedLog = new RemovedLog(REMOVED_LOG_SIZE, version);
+
     public TargetTable() {
-        
+        this(TargetTableEntry.DEFAULT_TTL / 1000, Collections.<AisTargetType, Integer> emptyMap());
     }
-    
+
+    /**
+     * @param defaultTtl
+     *            seconds targets are kept after their last message
+     * @param ttls
+     *            seconds targets of given types are kept after their last message
+     */
+    public TargetTable(int defaultTtl, Map<AisTargetType, Integer> ttls) {
+        this(defaultTtl, ttls, false);
+    }
+
+    /**
+     * @param defaultTtl
+     *            seconds targets are kept after their last message
+     * @param ttls
+     *            seconds targets of given types are kept after their last message
+     * @param keepPackets
+     *            if the last position and static packets of the targets are kept
+     */
+    public TargetTable(int defaultTtl, Map<AisTargetType, Integer> ttls, boolean keepPackets) {
+        this.keepPackets = keepPackets;
+        this.slots = new Slots(INITIAL_CAPACITY, keepPackets);
+        this.defaultTtl = defaultTtl;
+        Arrays.fill(this.ttls, defaultTtl);
+        for (Map.Entry<AisTargetType, Integer> e : ttls.entrySet()) {
+            this.ttls[e.getKey().ordinal()] = e.getValue();
+        }
+        Arrays.fill(wheel, -1);
+    }
+
+    /**
+     * Update table from packet. Must only be called from one thread at a time.
+     * @param packet
+     */
     public void update(AisPacket packet) {
+        beginWrite();
+        try {
+            update(packet, Slots.seconds(System.currentTimeMillis()));
+        } finally {
+            writing.lazySet(false);
+        }
+    }
+
+    private void update(AisPacket packet, int now) {
+        if (now - wheelTime > 0) {
+            advance(now);
+        }
         AisMessage message = packet.tryGetAisMessage();
         if (message == null) {
             return;
@@ -47,27 +187,90 @@ public class TargetTable {
         if (!(message instanceof IVesselPositionMessage) && !(message instanceof AisStaticCommon)) {
             return;
         }
-        TargetTableEntry newEntry = new TargetTableEntry();
-        TargetTableEntry entry = targets.putIfAbsent(message.getUserId(), newEntry);
-        if (entry == null) {
-            entry = newEntry;
+        int mmsi = message.getUserId();
+        Slots s = slots;
+        int index = s.find(mmsi);
+        boolean added = index < 0;
+        if (added) {
+            index = insert(mmsi);
+            s = slots;
+        }
+        long v = version + 1;
+        s.update(index, message, packet, v, now, ttl(message));
+        version = v;
+        if (added) {
+            schedule(s, index);
         }
-        entry.update(message);
     }
-    
+
+    /**
+     * Return a copy of all targets
+     * @return
+     */
     public Map<Integer, TargetTableEntry> allTargets() {
+        Slots s = slots;
+        Map<Integer, TargetTableEntry> targets = new HashMap<>();
+        for (int i = 0; i < s.capacity(); i++) {
+            TargetTableEntry target = s.read(i);
+            if (target != null) {
+                targets.put(target.getMmsi(), target);
+            }
+        }
         return Collections.unmodifiableMap(targets);
     }
     
+    /**
+     * Iterate the last packets of the targets, if kept. The iteration is not affected by concurrent updates and may or
+     * may not reflect them.
+     * 
+     * @return
+     */
+    public Iterator<LastPackets> lastPackets() {
+        final Slots s = slots;
+        return new Iterator<LastPackets>() {
+            private int index;
+            private LastPackets next = advance();
+
+            private LastPackets advance() {
+                while (s.packets != null && index < s.capacity()) {
+                    LastPackets packets = s.readPackets(index++);
+                    if (packets != null) {
+                        return packets;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public LastPackets next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                LastPackets packets = next;
+                next = advance();
+                return packets;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
     /**
      * Return a message version of the target table
      * @return
      */
     public TargetTableMessage getTargetTableMessage() {
         TargetTableMessage message = new TargetTableMessage();
-        for (TargetTableEntry target : targets.values()) {
-            message.getTargets().add(target);
-        }
+        message.setVersion(version);
+        message.getTargets().addAll(allTargets().values());
         return message;
     }
     
@@ -77,38 +280,797 @@ public class TargetTable {
      */
     public TargetTableMessage getAliveTargetTableMessage() {
         TargetTableMessage message = new TargetTableMessage();
-        for (TargetTableEntry target : targets.values()) {
-            if (target.isAlive()) {
-                message.getTargets().add(target);
+        message.setVersion(version);
+        long now = System.currentTimeMillis();
+        Slots s = slots;
+        for (int i = 0; i < s.capacity(); i++) {
+            if (s.keys.get(i) >= 0 && isAlive(s.expiry(i), now)) {
+                TargetTableEntry target = s.read(i);
+                if (target != null) {
+                    message.getTargets().add(target);
+                }
             }
         }
         return message;
     }
 
+    /**
+     * Return a message with the alive targets changed since the given version, and the targets removed since. If
+     * the changes are no longer known, a message with the full table is returned.
+     * 
+     * @param since
+     *            version of the last table or changes seen by the reader
+     * @return
+     */
+    public TargetTableMessage getChangedTargetTableMessage(long since) {
+        long current = version;
+        List<Integer> expired = since > current ? null : removedLog.since(since);
+        if (expired == null) {
+            return getAliveTargetTableMessage();
+        }
+        TargetTableMessage message = new TargetTableMessage();
+        message.setVersion(current);
+        message.setDelta(true);
+        message.setExpired(expired);
+        long now = System.currentTimeMillis();
+        Slots s = slots;
+        for (int i = 0; i < s.capacity(); i++) {
+            if (s.keys.get(i) >= 0 && s.changes.get(i) > since) {
+                TargetTableEntry target = s.read(i);
+                if (target == null) {
+                    continue;
+                }
+                if (isAlive(s.expiry(i), now)) {
+                    message.getTargets().add(target);
+                } else {
+                    // Not yet removed by the writer
+                    expired.add(target.getMmsi());
+                }
+            }
+        }
+        return message;
+    }
+
+    /**
+     * Get the targets removed since the given version
+     * 
+     * @param since
+     * @return MMSI of the removed targets, or null if the removals are no longer known
+     */
+    public List<Integer> getRemovedSince(long since) {
+        return since > version ? null : removedLog.since(since);
+    }
+
+    /**
+     * Version of the last change to the table
+     * @return
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Current second of the timing wheel. Targets expire on whole seconds, so the alive targets do not change as long
+     * as neither the version nor the tick does.
+     * 
+     * @return
+     */
+    public int getTick() {
+        return Slots.seconds(System.currentTimeMillis());
+    }
+
     /**
      * Return if target exists and is alive
      * @param mmsi
      * @return
      */
     public boolean exists(int mmsi) {
-        TargetTableEntry target = targets.get(mmsi);
-        return target != null && target.isAlive();  
+        Slots s = slots;
+        int index = s.find(mmsi);
+        if (index < 0) {
+            return false;
+        }
+        long expiry = s.expiry(index);
+        return s.keys.get(index) == mmsi && isAlive(expiry, System.currentTimeMillis());
+    }
+
+    /**
+     * Get last known position of target
+     * @param mmsi
+     * @return the position or null if not known
+     */
+    public Position getPosition(int mmsi) {
+        Slots s = slots;
+        int index = s.find(mmsi);
+        return index < 0 ? null : s.readPosition(index, mmsi);
+    }
+
+    /**
+     * Number of targets in the table
+     * @return
+     */
+    public int size() {
+        return size;
     }
 
     /**
-     * Remove old targets
+     * Remove expired targets. This is also done on updates, so it is only needed when there are no updates. Can be
+     * called from any thread, and does nothing if an update is running, as that update turns the wheel itself.
      */
     public void cleanup() {
-        List<Integer> removeTargets = new ArrayList<>();
-        for (TargetTableEntry target : targets.values()) {
-            if (!target.isAlive()) {
-                removeTargets.add(target.getMmsi());
+        cleanup(System.currentTimeMillis());
+    }
+
+    void cleanup(long now) {
+        if (!writing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int seconds = Slots.seconds(now);
+            if (seconds - wheelTime > 0) {
+                advance(seconds);
+            }
+        } finally {
+            writing.lazySet(false);
+        }
+    }
+
+    /**
+     * Write all targets to a snapshot. Each target is written consistently, and the snapshot ends with a checksum so
+     * a damaged snapshot is not read. Can be called from any thread.
+     * 
+     * @param out
+     * @return number of targets written
+     * @throws IOException
+     */
+    public int writeSnapshot(OutputStream out) throws IOException {
+        CRC32 crc = new CRC32();
+        DataOutputStream data = new DataOutputStream(new CheckedOutputStream(out, crc));
+        data.writeInt(SNAPSHOT_MAGIC);
+        data.writeInt(SNAPSHOT_FORMAT);
+        int count = 0;
+        Slots s = slots;
+        for (int i = 0; i < s.capacity(); i++) {
+            if (s.keys.get(i) >= 0 && s.write(i, data)) {
+                count++;
+            }
+        }
+        // End marker
+        data.writeInt(Slots.EMPTY);
+        data.flush();
+        new DataOutputStream(out).writeLong(crc.getValue());
+        out.flush();
+        return count;
+    }
+
+    /**
+     * Add the targets of a snapshot that have not expired. Targets already in the table are replaced. Must only be
+     * called by the writer.
+     * 
+     * @param in
+     * @return number of targets added
+     * @throws IOException
+     *             if the snapshot cannot be read or is damaged, in which case nothing is added
+     */
+    public int readSnapshot(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            bytes.write(buffer, 0, n);
+        }
+        byte[] snapshot = bytes.toByteArray();
+        if (snapshot.length < 20) {
+            throw new IOException("Target table snapshot too short");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(snapshot, 0, snapshot.length - 8);
+        DataInputStream data = new DataInputStream(new ByteArrayInputStream(snapshot));
+        data.skipBytes(snapshot.length - 8);
+        if (data.readLong() != crc.getValue()) {
+            throw new IOException("Target table snapshot checksum mismatch");
+        }
+        data = new DataInputStream(new ByteArrayInputStream(snapshot, 0, snapshot.length - 8));
+        if (data.readInt() != SNAPSHOT_MAGIC || data.readInt() != SNAPSHOT_FORMAT) {
+            throw new IOException("Not a target table snapshot of a known format");
+        }
+        beginWrite();
+        try {
+            return load(data);
+        } finally {
+            writing.lazySet(false);
+        }
+    }
+
+    private int load(DataInputStream data) throws IOException {
+        int now = Slots.seconds(System.currentTimeMillis());
+        int count = 0;
+        int mmsi;
+        while ((mmsi = data.readInt()) != Slots.EMPTY) {
+            int lat = data.readInt();
+            int lon = data.readInt();
+            int lastMessage = data.readInt();
+            int expiry = data.readInt();
+            long name0 = data.readLong();
+            long name1 = data.readLong();
+            if (expiry - now <= 0) {
+                continue;
+            }
+            Slots s = slots;
+            int index = s.find(mmsi);
+            boolean added = index < 0;
+            if (added) {
+                index = insert(mmsi);
+                s = slots;
+            }
+            long v = version + 1;
+            s.load(index, lat, lon, lastMessage, expiry, name0, name1, v);
+            version = v;
+            if (added) {
+                schedule(s, index);
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Take over the writer, waiting for a running cleanup
+     */
+    private void beginWrite() {
+        while (!writing.compareAndSet(false, true)) {
+            Thread.yield();
+        }
+    }
+
+    private static boolean isAlive(long expiry, long now) {
+        return now < expiry;
+    }
+
+    private int ttl(AisMessage message) {
+        AisTargetType type = message.getTargetType();
+        return type == null ? defaultTtl : ttls[type.ordinal()];
+    }
+
+    /**
+     * Turn the timing wheel to the given second, removing the targets that have expired and moving the ones updated
+     * since they were put in their bucket
+     * 
+     * @param now
+     */
+    private void advance(int now) {
+        Slots s = slots;
+        int ticks = Math.min(now - wheelTime, WHEEL_SIZE);
+        for (int t = 1; t <= ticks; t++) {
+            int bucket = wheelTime + t & WHEEL_SIZE - 1;
+            int i = wheel[bucket];
+            wheel[bucket] = -1;
+            while (i >= 0) {
+                int next = s.wheelNext[i];
+                if (s.expiries.get(i) - now > 0) {
+                    schedule(s, i);
+                } else {
+                    int mmsi = s.keys.get(i);
+                    s.remove(i);
+                    size--;
+                    removed++;
+                    long v = version + 1;
+                    removedLog.add(mmsi, v);
+                    version = v;
+                }
+                i = next;
+            }
+        }
+        wheelTime = now;
+    }
+
+    /**
+     * Put slot in the bucket of its expiry
+     * 
+     * @param s
+     * @param i
+     */
+    private void schedule(Slots s, int i) {
+        int expiry = s.expiries.get(i);
+        int bucket = (expiry - wheelTime > 0 ? expiry : wheelTime + 1) & WHEEL_SIZE - 1;
+        s.wheelNext[i] = wheel[bucket];
+        wheel[bucket] = i;
+    }
+
+    /**
+     * Insert new target, growing or rebuilding the table first if needed
+     * @param mmsi
+     * @return index of the new slot
+     */
+    private int insert(int mmsi) {
+        Slots s = slots;
+        if ((size + removed + 1) * 4L > s.capacity() * 3L) {
+            s = rehash(s);
+        }
+        int index = s.insert(mmsi);
+        if (index < 0) {
+            // Reused a removed slot
+            index = -index - 1;
+            removed--;
+        }
+        size++;
+        return index;
+    }
+
+    private Slots rehash(Slots old) {
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < (size + 1) * 2) {
+            capacity <<= 1;
+        }
+        Slots s = new Slots(capacity, keepPackets);
+        for (int i = 0; i < old.capacity(); i++) {
+            if (old.keys.get(i) >= 0) {
+                s.copy(old, i);
+            }
+        }
+        Arrays.fill(wheel, -1);
+        for (int i = 0; i < s.capacity(); i++) {
+            if (s.keys.get(i) >= 0) {
+                schedule(s, i);
+            }
+        }
+        slots = s;
+        removed = 0;
+        return s;
+    }
+
+    /**
+     * Parallel arrays of target fields. Slots are written by the single writer between two increments of the slot
+     * version, so readers can detect and retry torn reads. Positions are kept in 1/10000000 degrees, times in seconds
+     * and names as packed six bit AIS text, so no objects are kept per target apart from the last packets, if kept.
+     */
+    static final class Slots {
+
+        static final int EMPTY = -1;
+
+        static final int REMOVED = -2;
+
+        static final int NO_POSITION = Integer.MIN_VALUE;
+
+        static final double POSITION_SCALE = 1e7;
+
+        /**
+         * Times are kept as seconds after 2014-01-01 UTC
+         */
+        static final long TIME_BASE = 1388534400000L;
+
+        /**
+         * Characters of a name kept in each long
+         */
+        static final int NAME_CHARS = 10;
+
+        /**
+         * Flag set in the first long of a packed name
+         */
+        static final long HAS_NAME = 1L << 63;
+
+        /**
+         * Kinds of last packets kept per slot
+         */
+        static final int POSITION_PACKET = 0;
+        static final int STATIC_PACKET = 1;
+        static final int STATIC_PART_B_PACKET = 2;
+        static final int PACKETS = 3;
+
+        final int mask;
+        final AtomicIntegerArray versions;
+        final AtomicIntegerArray keys;
+        final AtomicIntegerArray lats;
+        final AtomicIntegerArray lons;
+        final AtomicIntegerArray lastMessages;
+        final AtomicIntegerArray expiries;
+        final AtomicLongArray names;
+
+        /**
+         * Raw last packets of each slot, or null if not kept
+         */
+        final AtomicReferenceArray<String> packets;
+
+        /**
+         * Table version of the last change to each slot
+         */
+        final AtomicLongArray changes;
+
+        /**
+         * Next slot in the same bucket of the timing wheel, only used by the writer
+         */
+        final int[] wheelNext;
+
+        Slots(int capacity, boolean keepPackets) {
+            mask = capacity - 1;
+            versions = new AtomicIntegerArray(capacity);
+            keys = new AtomicIntegerArray(capacity);
+            lats = new AtomicIntegerArray(capacity);
+            lons = new AtomicIntegerArray(capacity);
+            lastMessages = new AtomicIntegerArray(capacity);
+            expiries = new AtomicIntegerArray(capacity);
+            wheelNext = new int[capacity];
+            names = new AtomicLongArray(2 * capacity);
+            changes = new AtomicLongArray(capacity);
+            packets = keepPackets ? new AtomicReferenceArray<String>(PACKETS * capacity) : null;
+            for (int i = 0; i < capacity; i++) {
+                keys.set(i, EMPTY);
+            }
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        static int hash(int mmsi) {
+            int h = mmsi * 0x9E3779B9;
+            return h ^ h >>> 16;
+        }
+
+        /**
+         * @param mmsi
+         * @return index of the slot or -1 if not found
+         */
+        int find(int mmsi) {
+            for (int i = hash(mmsi) & mask;; i = i + 1 & mask) {
+                int key = keys.get(i);
+                if (key == mmsi) {
+                    return i;
+                }
+                if (key == EMPTY) {
+                    return -1;
+                }
             }
         }
-        for (Integer mmsi : removeTargets) {
-            targets.remove(mmsi);
+
+        /**
+         * Take a slot for a target not in the table
+         * 
+         * @param mmsi
+         * @return index of the slot, or -index - 1 if it was a removed slot
+         */
+        int insert(int mmsi) {
+            int i = hash(mmsi) & mask;
+            while (keys.get(i) >= 0) {
+                i = i + 1 & mask;
+            }
+            boolean reused = keys.get(i) == REMOVED;
+            begin(i);
+            keys.lazySet(i, mmsi);
+            lats.lazySet(i, NO_POSITION);
+            lons.lazySet(i, NO_POSITION);
+            lastMessages.lazySet(i, 0);
+            expiries.lazySet(i, 0);
+            names.lazySet(2 * i, 0);
+            names.lazySet(2 * i + 1, 0);
+            clearPackets(i);
+            end(i);
+            return reused ? -i - 1 : i;
         }
-        
+
+        void copy(Slots from, int index) {
+            int i = insert(from.keys.get(index));
+            i = i < 0 ? -i - 1 : i;
+            begin(i);
+            lats.lazySet(i, from.lats.get(index));
+            lons.lazySet(i, from.lons.get(index));
+            lastMessages.lazySet(i, from.lastMessages.get(index));
+            expiries.lazySet(i, from.expiries.get(index));
+            names.lazySet(2 * i, from.names.get(2 * index));
+            names.lazySet(2 * i + 1, from.names.get(2 * index + 1));
+            changes.lazySet(i, from.changes.get(index));
+            if (packets != null) {
+                for (int k = 0; k < PACKETS; k++) {
+                    packets.lazySet(PACKETS * i + k, from.packets.get(PACKETS * index + k));
+                }
+            }
+            end(i);
+        }
+
+        void update(int i, AisMessage message, AisPacket packet, long version, int now, int ttl) {
+            begin(i);
+            changes.lazySet(i, version);
+            lastMessages.lazySet(i, now);
+            expiries.lazySet(i, now + ttl);
+            if (message instanceof IVesselPositionMessage) {
+                IVesselPositionMessage posMessage = (IVesselPositionMessage) message;
+                if (posMessage.isPositionValid()) {
+                    lats.lazySet(i, (int) Math.round(posMessage.getPos().getLatitudeDouble() * POSITION_SCALE));
+                    lons.lazySet(i, (int) Math.round(posMessage.getPos().getLongitudeDouble() * POSITION_SCALE));
+                }
+                if (packets != null) {
+                    packets.lazySet(PACKETS * i + POSITION_PACKET, packet.getStringMessage());
+                }
+            } else if (message instanceof AisStaticCommon) {
+                String name = ((AisStaticCommon) message).getName();
+                if (name != null) {
+                    names.lazySet(2 * i, packName(name, 0));
+                    names.lazySet(2 * i + 1, packName(name, NAME_CHARS));
+                }
+                if (packets != null) {
+                    boolean partB = message instanceof AisMessage24 && ((AisMessage24) message).getPartNumber() == 1;
+                    packets.lazySet(PACKETS * i + (partB ? STATIC_PART_B_PACKET : STATIC_PACKET),
+                            packet.getStringMessage());
+                }
+            }
+            end(i);
+        }
+
+        void load(int i, int lat, int lon, int lastMessage, int expiry, long name0, long name1, long version) {
+            begin(i);
+            changes.lazySet(i, version);
+            lats.lazySet(i, lat);
+            lons.lazySet(i, lon);
+            lastMessages.lazySet(i, lastMessage);
+            expiries.lazySet(i, expiry);
+            names.lazySet(2 * i, name0);
+            names.lazySet(2 * i + 1, name1);
+            end(i);
+        }
+
+        /**
+         * Write a consistent copy of slot to a snapshot
+         * 
+         * @param i
+         * @param out
+         * @return false if the slot is not in use
+         * @throws IOException
+         */
+        boolean write(int i, DataOutputStream out) throws IOException {
+            while (true) {
+                int v = versions.get(i);
+                if ((v & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                int key = keys.get(i);
+                int lat = lats.get(i);
+                int lon = lons.get(i);
+                int lastMessage = lastMessages.get(i);
+                int expiry = expiries.get(i);
+                long name0 = names.get(2 * i);
+                long name1 = names.get(2 * i + 1);
+                if (versions.get(i) != v) {
+                    continue;
+                }
+                if (key < 0) {
+                    return false;
+                }
+                out.writeInt(key);
+                out.writeInt(lat);
+                out.writeInt(lon);
+                out.writeInt(lastMessage);
+                out.writeInt(expiry);
+                out.writeLong(name0);
+                out.writeLong(name1);
+                return true;
+            }
+        }
+
+        void remove(int i) {
+            begin(i);
+            keys.lazySet(i, REMOVED);
+            clearPackets(i);
+            end(i);
+        }
+
+        private void clearPackets(int i) {
+            if (packets != null) {
+                for (int k = 0; k < PACKETS; k++) {
+                    packets.lazySet(PACKETS * i + k, null);
+                }
+            }
+        }
+
+        /**
+         * Time in milliseconds the target expires
+         * 
+         * @param i
+         * @return
+         */
+        long expiry(int i) {
+            return TIME_BASE + expiries.get(i) * 1000L;
+        }
+
+        /**
+         * @param millis
+         * @return seconds after {@link #TIME_BASE}
+         */
+        static int seconds(long millis) {
+            return (int) ((millis - TIME_BASE) / 1000);
+        }
+
+        /**
+         * Read a consistent copy of slot
+         * 
+         * @param i
+         * @return the target or null if the slot is not in use
+         */
+        TargetTableEntry read(int i) {
+            while (true) {
+                int v = versions.get(i);
+                if ((v & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                int key = keys.get(i);
+                int lat = lats.get(i);
+                int lon = lons.get(i);
+                int lastMessage = lastMessages.get(i);
+                long name0 = names.get(2 * i);
+                long name1 = names.get(2 * i + 1);
+                if (versions.get(i) != v) {
+                    continue;
+                }
+                if (key < 0) {
+                    return null;
+                }
+                TargetTableEntry target = new TargetTableEntry();
+                target.setMmsi(key);
+                target.setName(unpackName(name0, name1));
+                // Targets without a position are reported at 0,0 as before
+                if (lat != NO_POSITION) {
+                    target.setLat(lat / POSITION_SCALE);
+                    target.setLon(lon / POSITION_SCALE);
+                }
+                target.setLastMessage(TIME_BASE + lastMessage * 1000L);
+                return target;
+            }
+        }
+
+        /**
+         * Read a consistent copy of the last packets of slot
+         * 
+         * @param i
+         * @return the packets or null if the slot is not in use or has no packets
+         */
+        LastPackets readPackets(int i) {
+            while (true) {
+                int v = versions.get(i);
+                if ((v & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                int key = keys.get(i);
+                String position = packets.get(PACKETS * i + POSITION_PACKET);
+                String staticReport = packets.get(PACKETS * i + STATIC_PACKET);
+                String staticPartB = packets.get(PACKETS * i + STATIC_PART_B_PACKET);
+                if (versions.get(i) != v) {
+                    continue;
+                }
+                if (key < 0 || position == null && staticReport == null && staticPartB == null) {
+                    return null;
+                }
+                return new LastPackets(key, position, staticReport, staticPartB);
+            }
+        }
+
+        /**
+         * @param i
+         * @param mmsi
+         * @return position of the slot or null if unknown or the slot is no longer used by mmsi
+         */
+        Position readPosition(int i, int mmsi) {
+            while (true) {
+                int v = versions.get(i);
+                if ((v & 1) != 0) {
+                    Thread.yield();
+                    continue;
+                }
+                int key = keys.get(i);
+                int lat = lats.get(i);
+                int lon = lons.get(i);
+                if (versions.get(i) == v) {
+                    return key != mmsi || lat == NO_POSITION ? null : Position.create(lat / POSITION_SCALE, lon
+                            / POSITION_SCALE);
+                }
+            }
+        }
+
+        private void begin(int i) {
+            // Full fence so the following writes are not seen before the slot is marked
+            versions.set(i, versions.get(i) + 1);
+        }
+
+        private void end(int i) {
+            versions.lazySet(i, versions.get(i) + 1);
+        }
+
+        /**
+         * Pack part of a name the way {@link AisMessage#trimText(String)} would trim it, without allocating
+         * 
+         * @param raw
+         *            name from message
+         * @param from
+         *            first character of the trimmed name to pack
+         * @return
+         */
+        static long packName(String raw, int from) {
+            int end = raw.indexOf('@');
+            if (end < 0) {
+                end = raw.length();
+            }
+            int start = 0;
+            while (start < end && raw.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && raw.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            long packed = from == 0 ? HAS_NAME : 0;
+            for (int j = 0; j < NAME_CHARS; j++) {
+                int k = start + from + j;
+                // Pad with spaces, which are trimmed again when unpacking
+                char c = k < end ? raw.charAt(k) : ' ';
+                packed |= (long) (c < 32 || c > 95 ? '?' - 32 : c - 32) << 6 * j;
+            }
+            return packed;
+        }
+
+        static String unpackName(long name0, long name1) {
+            if ((name0 & HAS_NAME) == 0) {
+                return null;
+            }
+            char[] chars = new char[2 * NAME_CHARS];
+            for (int j = 0; j < NAME_CHARS; j++) {
+                chars[j] = (char) ((name0 >>> 6 * j & 63) + 32);
+                chars[NAME_CHARS + j] = (char) ((name1 >>> 6 * j & 63) + 32);
+            }
+            return new String(chars).trim();
+        }
+
+    }
+
+    /**
+     * Bounded log of removed targets. Written by the writer of the table and read by readers asking for changes.
+     */
+    static final class RemovedLog {
+
+        private final int[] mmsis;
+        private final long[] versions;
+        private int next;
+        private int count;
+
+        /**
+         * All targets removed after this version are in the log
+         */
+        private long floor;
+
+        RemovedLog(int size, long floor) {
+            mmsis = new int[size];
+            versions = new long[size];
+            this.floor = floor;
+        }
+
+        synchronized void add(int mmsi, long version) {
+            if (count == mmsis.length) {
+                floor = versions[next];
+            } else {
+                count++;
+            }
+            mmsis[next] = mmsi;
+            versions[next] = version;
+            next = (next + 1) % mmsis.length;
+        }
+
+        /**
+         * @param since
+         * @return the targets removed after the version, or null if some of them are no longer known
+         */
+        synchronized List<Integer> since(long since) {
+            if (since < floor) {
+                return null;
+            }
+            List<Integer> removed = new ArrayList<>();
+            for (int j = 0; j < count; j++) {
+                int k = (next - count + j + mmsis.length) % mmsis.length;
+                if (versions[k] > since) {
+                    removed.add(mmsis[k]);
+                }
+            }
+            return removed;
+        }
+
     }
 
 }
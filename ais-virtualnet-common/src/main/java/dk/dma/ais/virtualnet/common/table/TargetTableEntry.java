@@ -20,11 +20,10 @@ import javax.xml.bind.annotation.XmlRootElement;
 import javax.xml.bind.annotation.XmlTransient;
 
 import net.jcip.annotations.ThreadSafe;
-import dk.dma.ais.message.AisMessage;
-import dk.dma.ais.message.AisStaticCommon;
-import dk.dma.ais.message.IVesselPositionMessage;
-import dk.dma.enav.model.geometry.Position;
 
+/**
+ * A target copied from the {@link TargetTable}
+ */
 @ThreadSafe
 @XmlRootElement
 public class TargetTableEntry {
@@ -32,88 +31,71 @@ public class TargetTableEntry {
     /**
      * Default time a target is considered to be alive
      */
-    private static final int DEFAULT_TTL = 10 * 60 * 1000;  // 10 min
+    static final int DEFAULT_TTL = 10 * 60 * 1000;  // 10 min
 
-    private int mmsi;
-    private String name;
-    private double lat;
-    private double lon;
-    private long lastMessage;
+    private volatile int mmsi;
+    private volatile String name;
+    private volatile double lat;
+    private volatile double lon;
+    private volatile long lastMessage;
 
     public TargetTableEntry() {
 
     }
 
-    public synchronized void update(AisMessage message) {
-        mmsi = message.getUserId();
-        lastMessage = System.currentTimeMillis();
-        if (message instanceof IVesselPositionMessage) {
-            Position pos = ((IVesselPositionMessage) message).getPos().getGeoLocation();
-            if (pos != null) {
-                lat = pos.getLatitude();
-                lon = pos.getLongitude();
-            }
-        } else if (message instanceof AisStaticCommon) {
-            String n = ((AisStaticCommon) message).getName();
-            if (n != null) {
-                name = AisMessage.trimText(n);
-            }
-        }
-
-    }
-
-    public synchronized int getMmsi() {
+    public int getMmsi() {
         return mmsi;
     }
     
-    public synchronized void setMmsi(int mmsi) {
+    public void setMmsi(int mmsi) {
         this.mmsi = mmsi;
     }
 
-    public synchronized String getName() {
+    public String getName() {
         return name;
     }
     
-    public synchronized void setName(String name) {
+    public void setName(String name) {
         this.name = name;
     }
 
-    public synchronized double getLat() {
+    public double getLat() {
         return lat;
     }
     
-    public synchronized void setLat(double lat) {
+    public void setLat(double lat) {
         this.lat = lat;
     }
 
-    public synchronized double getLon() {
+    public double getLon() {
         return lon;
     }
     
-    public synchronized void setLon(double lon) {
+    public void setLon(double lon) {
         this.lon = lon;
     }
-    
-    public synchronized long getLastMessage() {
+
+    public long getLastMessage() {
         return lastMessage;
     }
     
-    public synchronized void setLastMessage(long lastMessage) {
+    public void setLastMessage(long lastMessage) {
         this.lastMessage = lastMessage;
     }
     
-    public synchronized boolean isAlive(int ttl) {
+    public boolean isAlive(int ttl) {
         return (System.currentTimeMillis() - lastMessage) < ttl;
     }
     
     @XmlTransient
-    public synchronized boolean isAlive() {
+    public boolean isAlive() {
         return isAlive(DEFAULT_TTL);
     }
     
     @Override
-    public synchronized String toString() {
-        return (name != null ? name : "N/A") + " (" + Integer.toString(mmsi) + ")";
+    public String toString() {
+        String n = name;
+        return (n != null ? n : "N/A") + " (" + Integer.toString(mmsi) + ")";
     }
     
     /**
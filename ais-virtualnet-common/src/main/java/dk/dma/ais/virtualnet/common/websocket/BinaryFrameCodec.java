@@ -0,0 +1,176 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.websocket;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jcip.annotations.ThreadSafe;
+import dk.dma.ais.virtualnet.common.message.WsMessage;
+
+/**
+ * Binary framing of AIS packets, used instead of JSON text frames when the client announces
+ * {@link WsMessage#CAPABILITY_BINARY}. A binary frame holds one or more records of one packet each:
+ * 
+ * <pre>
+ * 1 byte   version (high 4 bits) and flags (low 4 bits)
+ * 8 bytes  ingest time in milliseconds, if flagged
+ * 8 bytes  packet timestamp in milliseconds, if flagged
+ * 2 bytes  length of the sentences
+ * n bytes  the AIS sentences of the packet as ASCII, separated by CRLF
+ * </pre>
+ * 
+ * Proprietary sentences and tag blocks are not included. The time they carry is sent as the packet timestamp. A
+ * record flagged as a sequence record holds just the 8 bytes of a sequence number after the header, and is only sent
+ * to clients announcing {@link WsMessage#CAPABILITY_RESUME}.
+ */
+@ThreadSafe
+public final class BinaryFrameCodec {
+
+    public static final int VERSION = 1;
+
+    private static final int FLAG_INGEST_TIME = 1;
+
+    private static final int FLAG_TIMESTAMP = 2;
+
+    private static final int FLAG_SEQUENCE = 4;
+
+    private static final int MAX_LENGTH = 0xffff;
+
+    private BinaryFrameCodec() {
+
+    }
+
+    /**
+     * Encode packet as a record
+     * 
+     * @param packet
+     *            the sentences of the packet separated by CRLF
+     * @param ingestTime
+     *            or null
+     * @param timestamp
+     *            or null
+     * @return
+     */
+    public static byte[] encode(String packet, Long ingestTime, Long timestamp) {
+        byte[] sentences = aisSentences(packet).getBytes(StandardCharsets.US_ASCII);
+        if (sentences.length > MAX_LENGTH) {
+            throw new IllegalArgumentException("Packet too long: " + sentences.length);
+        }
+        int flags = (ingestTime != null ? FLAG_INGEST_TIME : 0) | (timestamp != null ? FLAG_TIMESTAMP : 0);
+        ByteBuffer buf = ByteBuffer.allocate(1 + (ingestTime != null ? 8 : 0) + (timestamp != null ? 8 : 0) + 2
+                + sentences.length);
+        buf.put((byte) (VERSION << 4 | flags));
+        if (ingestTime != null) {
+            buf.putLong(ingestTime);
+        }
+        if (timestamp != null) {
+            buf.putLong(timestamp);
+        }
+        buf.putShort((short) sentences.length);
+        buf.put(sentences);
+        return buf.array();
+    }
+
+    /**
+     * Encode sequence number as a record
+     * 
+     * @param sequence
+     * @return
+     */
+    public static byte[] encodeSequence(long sequence) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8);
+        buf.put((byte) (VERSION << 4 | FLAG_SEQUENCE));
+        buf.putLong(sequence);
+        return buf.array();
+    }
+
+    /**
+     * Decode the records of a frame
+     * 
+     * @param frame
+     * @return a message with packet, and maybe ingest time and timestamp, or with sequence number for each record
+     * @throws IllegalArgumentException
+     *             if the frame is not valid
+     */
+    public static List<WsMessage> decode(ByteBuffer frame) {
+        List<WsMessage> messages = new ArrayList<>();
+        try {
+            while (frame.hasRemaining()) {
+                int header = frame.get() & 0xff;
+                if (header >>> 4 != VERSION) {
+                    throw new IllegalArgumentException("Unknown version " + (header >>> 4));
+                }
+                WsMessage message = new WsMessage();
+                if ((header & FLAG_SEQUENCE) != 0) {
+                    message.setSequence(frame.getLong());
+                    messages.add(message);
+                    continue;
+                }
+                if ((header & FLAG_INGEST_TIME) != 0) {
+                    message.setIngestTime(frame.getLong());
+                }
+                if ((header & FLAG_TIMESTAMP) != 0) {
+                    message.setTimestamp(frame.getLong());
+                }
+                int length = frame.getShort() & 0xffff;
+                byte[] sentences = new byte[length];
+                frame.get(sentences);
+                message.setPacket(new String(sentences, StandardCharsets.US_ASCII));
+                messages.add(message);
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated frame");
+        }
+        return messages;
+    }
+
+    /**
+     * Get the AIS sentences of a packet without proprietary sentences and tag blocks
+     * 
+     * @param packet
+     * @return
+     */
+    static String aisSentences(String packet) {
+        StringBuilder buf = null;
+        int start = 0;
+        while (start < packet.length()) {
+            int end = packet.indexOf('\n', start);
+            if (end < 0) {
+                end = packet.length();
+            }
+            int lineEnd = end > start && packet.charAt(end - 1) == '\r' ? end - 1 : end;
+            int sentence = packet.indexOf('!', start);
+            if (sentence >= 0 && sentence < lineEnd) {
+                if (sentence == 0 && lineEnd == packet.length()) {
+                    // Already just one AIS sentence
+                    return packet;
+                }
+                if (buf == null) {
+                    buf = new StringBuilder(packet.length());
+                } else if (buf.length() > 0) {
+                    buf.append("\r\n");
+                }
+                buf.append(packet, sentence, lineEnd);
+            }
+            start = end + 1;
+        }
+        return buf == null ? "" : buf.toString();
+    }
+
+}
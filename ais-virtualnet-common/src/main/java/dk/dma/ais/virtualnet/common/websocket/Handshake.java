@@ -0,0 +1,84 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.websocket;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Headers of the WebSocket upgrade carrying the credentials and MMSI of a transponder, so it can connect without
+ * first authenticating and reserving its MMSI over REST. The server answers with {@link #RESULT}. A server not
+ * answering does not know the headers, and the transponder falls back to REST. A transponder reconnecting after a
+ * drop also sends the token and last sequence number of the dropped session, to resume it.
+ */
+public final class Handshake {
+
+    public static final String USERNAME = "X-AisVirtualNet-Username";
+
+    /**
+     * Hashed password
+     */
+    public static final String PASSWORD = "X-AisVirtualNet-Password";
+
+    public static final String MMSI = "X-AisVirtualNet-Mmsi";
+
+    /**
+     * Result of the MMSI reservation, or NOT_AUTHENTICATED
+     */
+    public static final String RESULT = "X-AisVirtualNet-Result";
+
+    /**
+     * Token of the session, sent by the server with the result if the MMSI is reserved
+     */
+    public static final String TOKEN = "X-AisVirtualNet-Token";
+
+    /**
+     * Token of a dropped session the transponder wants to resume. The server only knows it for a short while after
+     * the drop.
+     */
+    public static final String RESUME_TOKEN = "X-AisVirtualNet-Resume-Token";
+
+    /**
+     * Last sequence number received in the dropped session
+     */
+    public static final String RESUME_SEQUENCE = "X-AisVirtualNet-Resume-Sequence";
+
+    /**
+     * Sent by the server as true if the packets since the sequence number are replayed
+     */
+    public static final String RESUMED = "X-AisVirtualNet-Resumed";
+
+    private Handshake() {
+
+    }
+
+    /**
+     * Get the first value of a header, ignoring the case of its name
+     * 
+     * @param headers
+     * @param name
+     * @return the value or null if not present
+     */
+    public static String getHeader(Map<String, List<String>> headers, String name) {
+        for (Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,165 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.websocket;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.websocket.Extension;
+
+import net.jcip.annotations.Immutable;
+
+/**
+ * The permessage-deflate WebSocket extension (RFC 7692), as offered by the transponder and accepted by the server.
+ * <p>
+ * The deflater of the JDK always uses a 32 KiB window, so window bits are never negotiated down: offers asking the
+ * server to use a smaller window are declined, and the client is never asked to use one.
+ */
+@Immutable
+public final class PerMessageDeflate implements Extension {
+
+    public static final String NAME = "permessage-deflate";
+
+    static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+    static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+    static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+    private static final String MAX_WINDOW_BITS = "15";
+
+    private final List<Parameter> parameters;
+
+    /**
+     * @param contextTakeover
+     *            whether both ends may keep the compression dictionary between messages
+     */
+    public PerMessageDeflate(boolean contextTakeover) {
+        this(contextTakeover, contextTakeover);
+    }
+
+    /**
+     * @param clientContextTakeover
+     *            whether the client may keep its compression dictionary between messages
+     * @param serverContextTakeover
+     *            whether the server may keep its compression dictionary between messages
+     */
+    public PerMessageDeflate(boolean clientContextTakeover, boolean serverContextTakeover) {
+        List<Parameter> parameters = new ArrayList<>(2);
+        if (!clientContextTakeover) {
+            parameters.add(new Param(CLIENT_NO_CONTEXT_TAKEOVER));
+        }
+        if (!serverContextTakeover) {
+            parameters.add(new Param(SERVER_NO_CONTEXT_TAKEOVER));
+        }
+        this.parameters = Collections.unmodifiableList(parameters);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public List<Parameter> getParameters() {
+        return parameters;
+    }
+
+    public boolean isClientContextTakeover() {
+        return !hasParameter(this, CLIENT_NO_CONTEXT_TAKEOVER);
+    }
+
+    public boolean isServerContextTakeover() {
+        return !hasParameter(this, SERVER_NO_CONTEXT_TAKEOVER);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder buf = new StringBuilder(NAME);
+        for (Parameter parameter : parameters) {
+            buf.append("; ").append(parameter.getName());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Select the extensions to use for a connection from those requested by the client. Only permessage-deflate is
+     * ever accepted, using the first offer the server can honour.
+     * 
+     * @param requested
+     *            extension offers in the order of preference of the client
+     * @param enabled
+     *            whether the server compresses at all
+     * @param contextTakeover
+     *            whether the server allows the compression dictionary to be kept between messages
+     * @return
+     */
+    public static List<Extension> negotiate(List<Extension> requested, boolean enabled, boolean contextTakeover) {
+        if (!enabled) {
+            return Collections.emptyList();
+        }
+        for (Extension offer : requested) {
+            if (!NAME.equals(offer.getName())) {
+                continue;
+            }
+            String windowBits = parameter(offer, SERVER_MAX_WINDOW_BITS);
+            if (windowBits != null && !windowBits.trim().equals(MAX_WINDOW_BITS)) {
+                continue;
+            }
+            boolean clientTakeover = contextTakeover && !hasParameter(offer, CLIENT_NO_CONTEXT_TAKEOVER);
+            boolean serverTakeover = contextTakeover && !hasParameter(offer, SERVER_NO_CONTEXT_TAKEOVER);
+            Extension accepted = new PerMessageDeflate(clientTakeover, serverTakeover);
+            return Collections.singletonList(accepted);
+        }
+        return Collections.emptyList();
+    }
+
+    private static boolean hasParameter(Extension extension, String name) {
+        for (Parameter parameter : extension.getParameters()) {
+            if (name.equals(parameter.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String parameter(Extension extension, String name) {
+        for (Parameter parameter : extension.getParameters()) {
+            if (name.equals(parameter.getName())) {
+                return parameter.getValue() == null ? "" : parameter.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Immutable
+    private static final class Param implements Parameter {
+        private final String name;
+
+        Param(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String getValue() {
+            return null;
+        }
+    }
+
+}
@@ -15,12 +15,15 @@
 package dk.dma.ais.virtualnet.common.websocket;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
 import javax.websocket.CloseReason;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
 import javax.websocket.Session;
 
 import net.jcip.annotations.ThreadSafe;
@@ -29,8 +32,6 @@ import org.eclipse.jetty.websocket.api.WebSocketException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.gson.Gson;
-
 import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.virtualnet.common.message.WsMessage;
 
@@ -39,8 +40,6 @@ public abstract class WebSocketSession {
 
     private static final Logger LOG = LoggerFactory.getLogger(WebSocketSession.class);
 
-    private final Gson gson = new Gson();
-
     private final CountDownLatch connected = new CountDownLatch(1);
 
     private volatile Session session;
@@ -61,13 +60,18 @@ public abstract class WebSocketSession {
         session = null;
     }
 
-    public void onWebSocketBinary(byte[] payload, int offset, int len) {
-        Session s = session;
-        LOG.error("Received binary data");
+    @OnMessage
+    public void onWebSocketBinary(ByteBuffer payload) {
+        List<WsMessage> messages;
         try {
-            s.close(new CloseReason(CloseReason.CloseCodes.PROTOCOL_ERROR, "Cannot accept binary"));
-        } catch (Exception e) {
-            LOG.error("Failed to close web sokcet", e);
+            messages = BinaryFrameCodec.decode(payload);
+        } catch (IllegalArgumentException e) {
+            LOG.error("Received invalid binary data: " + e.getMessage());
+            close(new CloseReason(CloseReason.CloseCodes.PROTOCOL_ERROR, "Invalid binary frame"));
+            return;
+        }
+        for (WsMessage msg : messages) {
+            handleMessage(msg);
         }
     }
 
@@ -79,7 +83,7 @@ public abstract class WebSocketSession {
     @OnMessage
     public void onWebSocketText(String message) {
         // Try to deserialize into message
-        WsMessage msg = gson.fromJson(message, WsMessage.class);
+        WsMessage msg = WsMessageCodec.decode(message);
         // TODO handle exception
         handleMessage(msg);
     }
@@ -96,15 +100,37 @@ public abstract class WebSocketSession {
         }
     }
 
+    /**
+     * Close the web socket telling the other end why
+     * 
+     * @param reason
+     */
+    public final void close(CloseReason reason) {
+        Session s = session;
+        LOG.info("Closing web socket: " + reason.getReasonPhrase());
+        try {
+            if (s != null) {
+                s.close(reason);
+            }
+        } catch (Exception e) {
+            LOG.error("Failed to close web socket: " + e.getMessage());
+        }
+    }
+
     public void sendPacket(AisPacket packet) {
         sendMessage(new WsMessage(packet));
     }
 
     protected final void sendMessage(WsMessage wsMessage) {
-        sendText(gson.toJson(wsMessage));
+        sendText(encode(wsMessage));
     }
 
-    private void sendText(String text) {
+    /**
+     * Send an already encoded message
+     * 
+     * @param text
+     */
+    protected final void sendText(String text) {
         Session s = session;
         RemoteEndpoint.Basic r = null;
         try {
@@ -121,6 +147,112 @@ public abstract class WebSocketSession {
         }
     }
 
+    /**
+     * Send an already encoded message without waiting for the write to complete. The handler is called when the
+     * write completes if true is returned.
+     * 
+     * @param text
+     * @param handler
+     * @return false if the session is not open
+     */
+    protected final boolean sendTextAsync(String text, SendHandler handler) {
+        Session s = session;
+        RemoteEndpoint.Async r = null;
+        try {
+            r = s == null ? null : s.getAsyncRemote();
+        } catch (WebSocketException e) {
+            // Ignore
+        }
+        if (r == null) {
+            return false;
+        }
+        try {
+            r.sendText(text, handler);
+        } catch (RuntimeException e) {
+            LOG.error("Failed to send text: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Send binary frame without waiting for the write to complete. The handler is called when the write completes if
+     * true is returned.
+     * 
+     * @param data
+     * @param handler
+     * @return false if the session is not open
+     */
+    protected final boolean sendBinaryAsync(ByteBuffer data, SendHandler handler) {
+        Session s = session;
+        RemoteEndpoint.Async r = null;
+        try {
+            r = s == null ? null : s.getAsyncRemote();
+        } catch (WebSocketException e) {
+            // Ignore
+        }
+        if (r == null) {
+            return false;
+        }
+        try {
+            r.sendBinary(data, handler);
+        } catch (RuntimeException e) {
+            LOG.error("Failed to send binary: " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Encode message for sending as a text frame. Can be used to encode a message once and send it to several
+     * sessions.
+     * 
+     * @param wsMessage
+     * @return
+     */
+    public static String encode(WsMessage wsMessage) {
+        return WsMessageCodec.encode(wsMessage);
+    }
+
+    /**
+     * Join already encoded messages into the encoding of a single {@link WsMessage} batch. Gives the same result as
+     * encoding a message with the decoded messages set as batch.
+     * 
+     * @param encodedMessages
+     * @return
+     */
+    public static String encodeBatch(List<String> encodedMessages) {
+        return encodeBatch(encodedMessages, null);
+    }
+
+    /**
+     * Join already encoded messages into the encoding of a single {@link WsMessage} batch with a sequence number
+     * 
+     * @param encodedMessages
+     * @param sequence
+     *            or null
+     * @return
+     */
+    public static String encodeBatch(List<String> encodedMessages, Long sequence) {
+        int length = 12 + (sequence != null ? 32 : 0);
+        for (String encoded : encodedMessages) {
+            length += encoded.length() + 1;
+        }
+        StringBuilder buf = new StringBuilder(length);
+        buf.append("{\"batch\":[");
+        for (int i = 0; i < encodedMessages.size(); i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append(encodedMessages.get(i));
+        }
+        buf.append(']');
+        if (sequence != null) {
+            buf.append(",\"sequence\":").append(sequence.longValue());
+        }
+        return buf.append('}').toString();
+    }
+
     public CountDownLatch getConnected() {
         return connected;
     }
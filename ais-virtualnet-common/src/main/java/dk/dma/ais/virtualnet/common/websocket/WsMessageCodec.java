@@ -0,0 +1,545 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.websocket;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.jcip.annotations.ThreadSafe;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import dk.dma.ais.virtualnet.common.message.Subscription;
+import dk.dma.ais.virtualnet.common.message.WsMessage;
+
+/**
+ * Streaming JSON codec for {@link WsMessage}. Encodes to exactly what Gson gives, but appends the fields directly to
+ * a buffer reused by each thread instead of going through reflection. Messages in the form written by the encoder
+ * are decoded by a small strict parser. Anything else, like unknown fields, is left to a lenient {@link JsonReader}
+ * which accepts what Gson accepts.
+ */
+@ThreadSafe
+public final class WsMessageCodec {
+
+    /**
+     * Buffers larger than this are not kept between calls
+     */
+    private static final int MAX_RETAINED = 64 * 1024;
+
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+
+    /**
+     * Escapes of the ASCII characters, the same as used by Gson with HTML safe output
+     */
+    private static final String[] REPLACEMENTS = new String[128];
+
+    static {
+        for (int i = 0; i < 0x20; i++) {
+            REPLACEMENTS[i] = String.format("\\u%04x", i);
+        }
+        REPLACEMENTS['"'] = "\\\"";
+        REPLACEMENTS['\\'] = "\\\\";
+        REPLACEMENTS['\t'] = "\\t";
+        REPLACEMENTS['\b'] = "\\b";
+        REPLACEMENTS['\n'] = "\\n";
+        REPLACEMENTS['\r'] = "\\r";
+        REPLACEMENTS['\f'] = "\\f";
+        REPLACEMENTS['<'] = "\\u003c";
+        REPLACEMENTS['>'] = "\\u003e";
+        REPLACEMENTS['&'] = "\\u0026";
+        REPLACEMENTS['='] = "\\u003d";
+        REPLACEMENTS['\''] = "\\u0027";
+    }
+
+    private WsMessageCodec() {
+
+    }
+
+    /**
+     * Encode message
+     * 
+     * @param message
+     * @return
+     */
+    public static String encode(WsMessage message) {
+        StringBuilder buf = BUFFER.get();
+        buf.setLength(0);
+        encode(message, buf);
+        String text = buf.toString();
+        if (buf.capacity() > MAX_RETAINED) {
+            BUFFER.remove();
+        }
+        return text;
+    }
+
+    /**
+     * Append the encoding of message to buffer
+     * 
+     * @param message
+     * @param buf
+     */
+    public static void encode(WsMessage message, StringBuilder buf) {
+        if (message == null) {
+            buf.append("null");
+            return;
+        }
+        int start = buf.append('{').length();
+        if (message.getPacket() != null) {
+            string(name(buf, start, "packet"), message.getPacket());
+        }
+        if (message.getAuthToken() != null) {
+            string(name(buf, start, "authToken"), message.getAuthToken());
+        }
+        if (message.getBatch() != null) {
+            name(buf, start, "batch").append('[');
+            List<WsMessage> batch = message.getBatch();
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                encode(batch.get(i), buf);
+            }
+            buf.append(']');
+        }
+        if (message.getCapabilities() != null) {
+            name(buf, start, "capabilities").append('[');
+            List<String> capabilities = message.getCapabilities();
+            for (int i = 0; i < capabilities.size(); i++) {
+                if (i > 0) {
+                    buf.append(',');
+                }
+                string(buf, capabilities.get(i));
+            }
+            buf.append(']');
+        }
+        Subscription subscription = message.getSubscription();
+        if (subscription != null) {
+            int subStart = name(buf, start, "subscription").append('{').length();
+            if (subscription.getLat() != null) {
+                number(name(buf, subStart, "lat"), subscription.getLat());
+            }
+            if (subscription.getLon() != null) {
+                number(name(buf, subStart, "lon"), subscription.getLon());
+            }
+            number(name(buf, subStart, "radius"), subscription.getRadius());
+            buf.append('}');
+        }
+        if (message.getIngestTime() != null) {
+            name(buf, start, "ingestTime").append(message.getIngestTime().longValue());
+        }
+        if (message.getTimestamp() != null) {
+            name(buf, start, "timestamp").append(message.getTimestamp().longValue());
+        }
+        if (message.getSequence() != null) {
+            name(buf, start, "sequence").append(message.getSequence().longValue());
+        }
+        buf.append('}');
+    }
+
+    /**
+     * Append name of a field, preceded by a separator unless it is the first field of the object
+     */
+    private static StringBuilder name(StringBuilder buf, int start, String name) {
+        if (buf.length() > start) {
+            buf.append(',');
+        }
+        return buf.append('"').append(name).append("\":");
+    }
+
+    private static void number(StringBuilder buf, double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            throw new IllegalArgumentException(value + " is not a valid double value as per JSON specification");
+        }
+        buf.append(value);
+    }
+
+    private static void string(StringBuilder buf, String value) {
+        if (value == null) {
+            buf.append("null");
+            return;
+        }
+        buf.append('"');
+        int last = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            String replacement;
+            if (c < 128) {
+                replacement = REPLACEMENTS[c];
+                if (replacement == null) {
+                    continue;
+                }
+            } else if (c == '\u2028') {
+                replacement = "\\u2028";
+            } else if (c == '\u2029') {
+                replacement = "\\u2029";
+            } else {
+                continue;
+            }
+            buf.append(value, last, i).append(replacement);
+            last = i + 1;
+        }
+        buf.append(value, last, length).append('"');
+    }
+
+    /**
+     * Decode message
+     * 
+     * @param text
+     * @return the message or null if the text is empty or null
+     * @throws JsonSyntaxException
+     *             if the text is not a valid message
+     */
+    public static WsMessage decode(String text) {
+        try {
+            return new Parser(text).document();
+        } catch (RuntimeException e) {
+            // Not written like the encoder does, let the lenient reader have a go
+            return decodeLenient(text);
+        }
+    }
+
+    private static WsMessage decodeLenient(String text) {
+        JsonReader reader = new JsonReader(new StringReader(text));
+        reader.setLenient(true);
+        try {
+            try {
+                reader.peek();
+            } catch (EOFException e) {
+                // Empty document
+                return null;
+            }
+            WsMessage message = readMessage(reader);
+            if (reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+            }
+            return message;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    private static WsMessage readMessage(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        WsMessage message = new WsMessage();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+            case "packet":
+                message.setPacket(reader.nextString());
+                break;
+            case "authToken":
+                message.setAuthToken(reader.nextString());
+                break;
+            case "batch":
+                List<WsMessage> batch = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    batch.add(readMessage(reader));
+                }
+                reader.endArray();
+                message.setBatch(batch);
+                break;
+            case "capabilities":
+                List<String> capabilities = new ArrayList<>();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    capabilities.add(readString(reader));
+                }
+                reader.endArray();
+                message.setCapabilities(capabilities);
+                break;
+            case "subscription":
+                message.setSubscription(readSubscription(reader));
+                break;
+            case "ingestTime":
+                message.setIngestTime(reader.nextLong());
+                break;
+            case "timestamp":
+                message.setTimestamp(reader.nextLong());
+                break;
+            case "sequence":
+                message.setSequence(reader.nextLong());
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return message;
+    }
+
+    private static Subscription readSubscription(JsonReader reader) throws IOException {
+        Subscription subscription = new Subscription();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+                continue;
+            }
+            switch (name) {
+            case "lat":
+                subscription.setLat(reader.nextDouble());
+                break;
+            case "lon":
+                subscription.setLon(reader.nextDouble());
+                break;
+            case "radius":
+                subscription.setRadius(reader.nextDouble());
+                break;
+            default:
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return subscription;
+    }
+
+    private static String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * Strict parser for messages written by the encoder, without the buffers of a {@link JsonReader}. Throws
+     * {@link IllegalArgumentException} at anything unexpected.
+     */
+    private static final class Parser {
+
+        private final String text;
+
+        private int pos;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        WsMessage document() {
+            skipWhitespace();
+            if (pos == text.length()) {
+                return null;
+            }
+            WsMessage message = message();
+            skipWhitespace();
+            if (pos != text.length()) {
+                throw new IllegalArgumentException();
+            }
+            return message;
+        }
+
+        private WsMessage message() {
+            if (literal("null")) {
+                return null;
+            }
+            WsMessage message = new WsMessage();
+            expect('{');
+            if (next('}')) {
+                return message;
+            }
+            do {
+                String name = string();
+                expect(':');
+                skipWhitespace();
+                if (literal("null")) {
+                    continue;
+                }
+                switch (name) {
+                case "packet":
+                    message.setPacket(string());
+                    break;
+                case "authToken":
+                    message.setAuthToken(string());
+                    break;
+                case "batch":
+                    List<WsMessage> batch = new ArrayList<>();
+                    expect('[');
+                    if (!next(']')) {
+                        do {
+                            skipWhitespace();
+                            batch.add(message());
+                        } while (next(','));
+                        expect(']');
+                    }
+                    message.setBatch(batch);
+                    break;
+                case "capabilities":
+                    List<String> capabilities = new ArrayList<>();
+                    expect('[');
+                    if (!next(']')) {
+                        do {
+                            skipWhitespace();
+                            capabilities.add(literal("null") ? null : string());
+                        } while (next(','));
+                        expect(']');
+                    }
+                    message.setCapabilities(capabilities);
+                    break;
+                case "subscription":
+                    message.setSubscription(subscription());
+                    break;
+                case "ingestTime":
+                    message.setIngestTime(Long.parseLong(number()));
+                    break;
+                case "timestamp":
+                    message.setTimestamp(Long.parseLong(number()));
+                    break;
+                case "sequence":
+                    message.setSequence(Long.parseLong(number()));
+                    break;
+                default:
+                    throw new IllegalArgumentException(name);
+                }
+            } while (next(','));
+            expect('}');
+            return message;
+        }
+
+        private Subscription subscription() {
+            Subscription subscription = new Subscription();
+            expect('{');
+            if (next('}')) {
+                return subscription;
+            }
+            do {
+                String name = string();
+                expect(':');
+                skipWhitespace();
+                if (literal("null")) {
+                    continue;
+                }
+                double value = Double.parseDouble(number());
+                switch (name) {
+                case "lat":
+                    subscription.setLat(value);
+                    break;
+                case "lon":
+                    subscription.setLon(value);
+                    break;
+                case "radius":
+                    subscription.setRadius(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException(name);
+                }
+            } while (next(','));
+            expect('}');
+            return subscription;
+        }
+
+        private String string() {
+            expect('"');
+            int start = pos;
+            StringBuilder buf = null;
+            while (true) {
+                char c = text.charAt(pos++);
+                if (c == '"') {
+                    return buf == null ? text.substring(start, pos - 1) : buf.append(text, start, pos - 1).toString();
+                }
+                if (c == '\\') {
+                    if (buf == null) {
+                        buf = new StringBuilder(text.length() - start);
+                    }
+                    buf.append(text, start, pos - 1);
+                    c = text.charAt(pos++);
+                    switch (c) {
+                    case 'u':
+                        buf.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    case 'b':
+                        buf.append('\b');
+                        break;
+                    case 'f':
+                        buf.append('\f');
+                        break;
+                    case 'n':
+                        buf.append('\n');
+                        break;
+                    case 'r':
+                        buf.append('\r');
+                        break;
+                    case 't':
+                        buf.append('\t');
+                        break;
+                    default:
+                        buf.append(c);
+                    }
+                    start = pos;
+                }
+            }
+        }
+
+        private String number() {
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) {
+                pos++;
+            }
+            return text.substring(start, pos);
+        }
+
+        private boolean literal(String literal) {
+            if (text.startsWith(literal, pos)) {
+                pos += literal.length();
+                return true;
+            }
+            return false;
+        }
+
+        private boolean next(char c) {
+            skipWhitespace();
+            if (pos < text.length() && text.charAt(pos) == c) {
+                pos++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(char c) {
+            if (!next(c)) {
+                throw new IllegalArgumentException("Expected " + c);
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+                pos++;
+            }
+        }
+
+    }
+
+}
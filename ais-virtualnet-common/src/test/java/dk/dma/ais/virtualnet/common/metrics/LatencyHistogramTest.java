@@ -0,0 +1,47 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.metrics;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void buckets() {
+        for (long v = 0; v < 1L << 20; v++) {
+            int index = LatencyHistogram.index(v);
+            Assert.assertTrue(v <= LatencyHistogram.highestValue(index));
+            Assert.assertTrue(index == 0 || v > LatencyHistogram.highestValue(index - 1));
+        }
+        Assert.assertEquals(LatencyHistogram.MAX_VALUE,
+                LatencyHistogram.highestValue(LatencyHistogram.index(LatencyHistogram.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getValueAtPercentile(99));
+        for (long v = 1; v <= 1000; v++) {
+            histogram.record(v * 1000);
+        }
+        Assert.assertEquals(1000, histogram.getCount());
+        Assert.assertEquals(1000000, histogram.getMax());
+        Assert.assertEquals(500000, histogram.getValueAtPercentile(50), 500000 * 0.04);
+        Assert.assertEquals(990000, histogram.getValueAtPercentile(99), 990000 * 0.04);
+        Assert.assertEquals(1000000, histogram.getValueAtPercentile(100));
+    }
+
+}
@@ -0,0 +1,148 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.table;
+
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisStaticCommon;
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.message.IVesselPositionMessage;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * Allocation when updating existing targets. Compares {@link TargetTable#update(AisPacket)} with the former
+ * approach of creating an entry for every packet and offering it with putIfAbsent. Run with main method to get the
+ * allocation rate per update (gc.alloc.rate.norm), not part of the unit tests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TargetTableBenchmark {
+
+    private static final int TARGETS = 1000;
+
+    private static final String POSITION = "!BSVDM,1,1,,A,13@nhr@000PqaQLOpJJr30a605hH,0*18";
+
+    private static final String STATIC = "!BSVDM,2,1,5,A,53@nhr@00000I@cC;3P@4q0ThuB0<tlEB222220j0h72240Ht4P00000,0*7C"
+            + "\r\n!BSVDM,2,2,5,A,000000000000000,2*38";
+
+    AisPacket[] packets = new AisPacket[2 * TARGETS];
+
+    /**
+     * Keeping the last packets, as the server does
+     */
+    TargetTable table = new TargetTable(600, Collections.<AisTargetType, Integer> emptyMap(), true);
+
+    ConcurrentHashMap<Integer, LegacyEntry> legacyTargets = new ConcurrentHashMap<>();
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < TARGETS; i++) {
+            packets[2 * i] = packet(POSITION, 219000000 + i);
+            packets[2 * i + 1] = packet(STATIC, 219000000 + i);
+        }
+        for (AisPacket packet : packets) {
+            table.update(packet);
+            AisMessage message = packet.tryGetAisMessage();
+            legacyTargets.put(message.getUserId(), new LegacyEntry());
+        }
+    }
+
+    private static AisPacket packet(String sentences, int mmsi) {
+        AisPacket packet = AisPacket.from(sentences);
+        // The message is parsed once and kept by the packet
+        packet.tryGetAisMessage().setUserId(mmsi);
+        return packet;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * TARGETS)
+    public void update() {
+        for (AisPacket packet : packets) {
+            table.update(packet);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(2 * TARGETS)
+    public void updatePutIfAbsent() {
+        for (AisPacket packet : packets) {
+            AisMessage message = packet.tryGetAisMessage();
+            LegacyEntry newEntry = new LegacyEntry();
+            LegacyEntry entry = legacyTargets.putIfAbsent(message.getUserId(), newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+            entry.update(message);
+        }
+    }
+
+    /**
+     * The former entry update
+     */
+    static class LegacyEntry {
+        private int mmsi;
+        private String name;
+        private double lat;
+        private double lon;
+        private long lastMessage;
+
+        synchronized void update(AisMessage message) {
+            mmsi = message.getUserId();
+            lastMessage = System.currentTimeMillis();
+            if (message instanceof IVesselPositionMessage) {
+                Position pos = ((IVesselPositionMessage) message).getPos().getGeoLocation();
+                if (pos != null) {
+                    lat = pos.getLatitude();
+                    lon = pos.getLongitude();
+                }
+            } else if (message instanceof AisStaticCommon) {
+                String n = ((AisStaticCommon) message).getName();
+                if (n != null) {
+                    name = AisMessage.trimText(n);
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(TargetTableBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
@@ -0,0 +1,140 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.table;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.packet.AisPacket;
+
+/**
+ * Heap retained by a table of 200k targets and the time of a full collection with the table live. Compares
+ * {@link TargetTable} with the former map of entry objects, and keeping the last packets in the table with keeping
+ * them in a map. Run with main method, not part of the unit tests.
+ */
+public class TargetTableMemoryBenchmark {
+
+    private static final int TARGETS = 200000;
+
+    public static void main(String[] args) {
+        for (int round = 0; round < 3; round++) {
+            measure("ConcurrentHashMap", new Runnable() {
+                ConcurrentHashMap<Integer, TargetTableBenchmark.LegacyEntry> targets;
+
+                @Override
+                public void run() {
+                    targets = new ConcurrentHashMap<>();
+                    for (int i = 0; i < TARGETS; i++) {
+                        for (String sentences : new String[] { TargetTableTest.POSITION, TargetTableTest.STATIC }) {
+                            AisMessage message = TargetTableTest.packet(sentences, 200000000 + i).tryGetAisMessage();
+                            TargetTableBenchmark.LegacyEntry entry = targets.get(message.getUserId());
+                            if (entry == null) {
+                                entry = new TargetTableBenchmark.LegacyEntry();
+                                targets.put(message.getUserId(), entry);
+                            }
+                            entry.update(message);
+                        }
+                    }
+                }
+            });
+            measure("TargetTable", new Runnable() {
+                TargetTable table;
+
+                @Override
+                public void run() {
+                    table = new TargetTable();
+                    for (int i = 0; i < TARGETS; i++) {
+                        table.update(TargetTableTest.packet(TargetTableTest.POSITION, 200000000 + i));
+                        table.update(TargetTableTest.packet(TargetTableTest.STATIC, 200000000 + i));
+                    }
+                }
+            });
+            measure("Packets in map", new Runnable() {
+                TargetTable table;
+                ConcurrentHashMap<Integer, String[]> packets;
+
+                @Override
+                public void run() {
+                    table = new TargetTable();
+                    packets = new ConcurrentHashMap<>();
+                    for (int i = 0; i < TARGETS; i++) {
+                        for (String sentences : new String[] { TargetTableTest.POSITION, TargetTableTest.STATIC }) {
+                            AisPacket packet = TargetTableTest.packet(sentences, 200000000 + i);
+                            table.update(packet);
+                            int mmsi = packet.tryGetAisMessage().getUserId();
+                            String[] last = packets.get(mmsi);
+                            if (last == null) {
+                                last = new String[3];
+                                packets.put(mmsi, last);
+                            }
+                            last[sentences == TargetTableTest.POSITION ? 0 : 1] = packet.getStringMessage();
+                        }
+                    }
+                }
+            });
+            measure("Packets in table", new Runnable() {
+                TargetTable table;
+
+                @Override
+                public void run() {
+                    table = new TargetTable(600, Collections.<AisTargetType, Integer> emptyMap(), true);
+                    for (int i = 0; i < TARGETS; i++) {
+                        table.update(TargetTableTest.packet(TargetTableTest.POSITION, 200000000 + i));
+                        table.update(TargetTableTest.packet(TargetTableTest.STATIC, 200000000 + i));
+                    }
+                }
+            });
+        }
+    }
+
+    private static void measure(String name, Runnable fill) {
+        fullGc();
+        long before = usedHeap();
+        fill.run();
+        fullGc();
+        long retained = usedHeap() - before;
+        long gcTime = gcTime();
+        fullGc();
+        gcTime = gcTime() - gcTime;
+        System.out.printf("%-18s retained %6.1f MB (%3d B/target), full gc %3d ms%n", name, retained / 1e6, retained
+                / TARGETS, gcTime);
+        // Keep table reachable until measured
+        fill.hashCode();
+    }
+
+    private static void fullGc() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+    }
+
+    private static long usedHeap() {
+        Runtime rt = Runtime.getRuntime();
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static long gcTime() {
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += gc.getCollectionTime();
+        }
+        return time;
+    }
+
+}
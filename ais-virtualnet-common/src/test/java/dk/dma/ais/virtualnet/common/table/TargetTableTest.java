@@ -0,0 +1,247 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.table;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.message.TargetTableMessage;
+import dk.dma.enav.model.geometry.Position;
+
+public class TargetTableTest {
+
+    static final String POSITION = "!BSVDM,1,1,,A,13@nhr@000PqaQLOpJJr30a605hH,0*18";
+
+    static final String STATIC = "!BSVDM,2,1,5,A,53@nhr@00000I@cC;3P@4q0ThuB0<tlEB222220j0h72240Ht4P00000,0*7C\r\n"
+            + "!BSVDM,2,2,5,A,000000000000000,2*38";
+
+    static final String CLASS_B = "!AIVDM,1,1,,A,B52K>;h00Fc>jpUlNV@ikwpUoP06,0*4C";
+
+    static final String STATIC_PART_A = "!AIVDM,1,1,,A,H42O55i18tMET00000000000000,2*6D";
+
+    static final String STATIC_PART_B = "!AIVDM,1,1,,A,H42O55lti4hhhilD3nink000?050,0*40";
+
+    static AisPacket packet(String sentences, int mmsi) {
+        AisPacket packet = AisPacket.from(sentences);
+        packet.tryGetAisMessage().setUserId(mmsi);
+        return packet;
+    }
+
+    @Test
+    public void updateAndGrow() {
+        TargetTable table = new TargetTable();
+        for (int i = 0; i < 5000; i++) {
+            table.update(packet(POSITION, 219000000 + i));
+        }
+        table.update(packet(STATIC, 219000042));
+        Assert.assertEquals(5000, table.size());
+        Assert.assertEquals(5000, table.allTargets().size());
+        Assert.assertEquals(5000, table.getAliveTargetTableMessage().getTargets().size());
+        Assert.assertTrue(table.exists(219004999));
+        Assert.assertFalse(table.exists(219005000));
+
+        TargetTableEntry target = table.allTargets().get(219000042);
+        Assert.assertEquals("DANPILOT COMET", target.getName());
+        Position pos = table.getPosition(219000042);
+        Assert.assertEquals(pos.getLatitude(), target.getLat(), 0);
+        Assert.assertEquals(pos.getLongitude(), target.getLon(), 0);
+    }
+
+    @Test
+    public void noPosition() {
+        TargetTable table = new TargetTable();
+        table.update(packet(STATIC, 219000000));
+        Assert.assertTrue(table.exists(219000000));
+        Assert.assertNull(table.getPosition(219000000));
+        Assert.assertNull(table.getPosition(219000001));
+    }
+
+    @Test
+    public void changesSince() {
+        TargetTable table = new TargetTable();
+        table.update(packet(POSITION, 219000000));
+        table.update(packet(POSITION, 219000001));
+        long version = table.getVersion();
+
+        table.update(packet(STATIC, 219000001));
+        table.update(packet(POSITION, 219000002));
+        TargetTableMessage message = table.getChangedTargetTableMessage(version);
+        Assert.assertTrue(message.isDelta());
+        Assert.assertEquals(table.getVersion(), message.getVersion());
+        Assert.assertEquals(2, message.getTargets().size());
+        Assert.assertTrue(message.getExpired().isEmpty());
+
+        version = table.getVersion();
+        Assert.assertTrue(table.getChangedTargetTableMessage(version).getTargets().isEmpty());
+        table.cleanup(System.currentTimeMillis() + TargetTableEntry.DEFAULT_TTL + 1000);
+        message = table.getChangedTargetTableMessage(version);
+        Assert.assertTrue(message.isDelta());
+        Assert.assertTrue(message.getTargets().isEmpty());
+        Assert.assertEquals(3, message.getExpired().size());
+        Assert.assertTrue(message.getExpired().containsAll(Arrays.asList(219000000, 219000001, 219000002)));
+
+        // Unknown versions give the full table
+        Assert.assertFalse(table.getChangedTargetTableMessage(0).isDelta());
+        Assert.assertFalse(table.getChangedTargetTableMessage(table.getVersion() + 1).isDelta());
+    }
+
+    @Test
+    public void expiry() {
+        Map<AisTargetType, Integer> ttls = new EnumMap<>(AisTargetType.class);
+        ttls.put(AisTargetType.B, 60);
+        TargetTable table = new TargetTable(600, ttls);
+        table.update(packet(POSITION, 219000000));
+        table.update(packet(CLASS_B, 219000001));
+        long now = System.currentTimeMillis();
+
+        table.cleanup(now + 30 * 1000);
+        Assert.assertEquals(2, table.size());
+        table.cleanup(now + 62 * 1000);
+        Assert.assertEquals(1, table.size());
+        Assert.assertTrue(table.allTargets().containsKey(219000000));
+        table.cleanup(now + 602 * 1000);
+        Assert.assertEquals(0, table.size());
+        Assert.assertTrue(table.allTargets().isEmpty());
+
+        // Removed slots are reused
+        table.update(packet(POSITION, 219000000));
+        Assert.assertEquals(1, table.size());
+    }
+
+    @Test
+    public void expiryWithoutUpdates() throws InterruptedException {
+        final TargetTable table = new TargetTable(60, Collections.<AisTargetType, Integer> emptyMap());
+        table.update(packet(POSITION, 219000000));
+        table.update(packet(POSITION, 219000001));
+        long version = table.getVersion();
+        table.update(packet(POSITION, 219000001));
+        final long later = System.currentTimeMillis() + 62 * 1000;
+
+        // The housekeeping thread turns the wheel while nothing is ingested
+        Thread housekeeping = new Thread() {
+            @Override
+            public void run() {
+                table.cleanup(later);
+            }
+        };
+        housekeeping.start();
+        housekeeping.join();
+
+        Assert.assertEquals(0, table.size());
+        List<Integer> removed = table.getRemovedSince(version);
+        Assert.assertEquals(2, removed.size());
+        Assert.assertTrue(removed.containsAll(Arrays.asList(219000000, 219000001)));
+        TargetTableMessage message = table.getChangedTargetTableMessage(version);
+        Assert.assertTrue(message.isDelta());
+        Assert.assertTrue(message.getTargets().isEmpty());
+        Assert.assertTrue(message.getExpired().containsAll(Arrays.asList(219000000, 219000001)));
+    }
+
+    @Test
+    public void lastPackets() {
+        TargetTable table = new TargetTable(600, Collections.<AisTargetType, Integer> emptyMap(), true);
+        for (String packet : new String[] { POSITION, STATIC, POSITION, STATIC_PART_A, STATIC_PART_B }) {
+            table.update(AisPacket.from(packet));
+        }
+        // Not a position or static report
+        table.update(AisPacket.from("!BSVDM,1,1,,B,D02R3VQHHNfq6DO6D0,4*3E"));
+
+        int count = 0;
+        Iterator<LastPackets> packets = table.lastPackets();
+        while (packets.hasNext()) {
+            LastPackets last = packets.next();
+            if (last.getMmsi() == 219001065) {
+                Assert.assertEquals(POSITION, last.getPosition());
+                Assert.assertEquals(STATIC, last.getStaticReport());
+                Assert.assertNull(last.getStaticPartB());
+            } else {
+                Assert.assertEquals(271041815, last.getMmsi());
+                Assert.assertNull(last.getPosition());
+                Assert.assertEquals(STATIC_PART_A, last.getStaticReport());
+                Assert.assertEquals(STATIC_PART_B, last.getStaticPartB());
+            }
+            count++;
+        }
+        Assert.assertEquals(2, count);
+
+        // Kept across growing the table, and gone with the target
+        for (int i = 0; i < 2000; i++) {
+            table.update(packet(POSITION, 219000000 + i));
+        }
+        Assert.assertTrue(table.lastPackets().hasNext());
+        table.cleanup(System.currentTimeMillis() + 602 * 1000);
+        Assert.assertFalse(table.lastPackets().hasNext());
+        Assert.assertFalse(new TargetTable().lastPackets().hasNext());
+    }
+
+    @Test
+    public void snapshot() throws IOException {
+        TargetTable table = new TargetTable();
+        for (int i = 0; i < 2000; i++) {
+            table.update(packet(POSITION, 219000000 + i));
+        }
+        table.update(packet(STATIC, 219000042));
+        table.update(packet(STATIC, 219009999));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(2001, table.writeSnapshot(out));
+        byte[] snapshot = out.toByteArray();
+
+        TargetTable loaded = new TargetTable();
+        Assert.assertEquals(2001, loaded.readSnapshot(new ByteArrayInputStream(snapshot)));
+        Assert.assertEquals(2001, loaded.size());
+        TargetTableEntry target = loaded.allTargets().get(219000042);
+        Assert.assertEquals("DANPILOT COMET", target.getName());
+        Assert.assertEquals(table.getPosition(219000042), loaded.getPosition(219000042));
+        Assert.assertNull(loaded.getPosition(219009999));
+        Assert.assertEquals(table.allTargets().get(219000042).getLastMessage(), target.getLastMessage());
+
+        // Damaged snapshots are not read
+        snapshot[100] ^= 1;
+        TargetTable damaged = new TargetTable();
+        try {
+            damaged.readSnapshot(new ByteArrayInputStream(snapshot));
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals(0, damaged.size());
+        }
+    }
+
+    @Test
+    public void names() {
+        Assert.assertEquals("DANPILOT COMET", unpack("DANPILOT COMET      "));
+        Assert.assertEquals("ANNA", unpack("ANNA@@@@@@@@@@@@@@@@"));
+        Assert.assertEquals("ANNA B", unpack(" ANNA B@@@@@@@@@@@@@"));
+        Assert.assertEquals("ABCDEFGHIJKLMNOPQRST", unpack("ABCDEFGHIJKLMNOPQRST"));
+        Assert.assertEquals("", unpack("@@@@@@@@@@@@@@@@@@@@"));
+        Assert.assertNull(TargetTable.Slots.unpackName(0, 0));
+    }
+
+    private static String unpack(String raw) {
+        return TargetTable.Slots.unpackName(TargetTable.Slots.packName(raw, 0), TargetTable.Slots.packName(raw, 10));
+    }
+
+}
@@ -0,0 +1,57 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.websocket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+
+import dk.dma.ais.virtualnet.common.message.WsMessage;
+
+public class BatchEncodingTest {
+
+    @Test
+    public void joinedBatchEqualsEncodedBatch() {
+        List<WsMessage> messages = new ArrayList<>();
+        List<String> encoded = new ArrayList<>();
+        for (String packet : new String[] { "!AIVDM,1,1,,A,15MgK45P3@G?fl0E`JbR0OwT0@MS,0*4E",
+                "$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n"
+                        + "!BSVDM,1,1,,B,33aEP2hP00PBLfNMbT`FbHPR0000,0*43" }) {
+            WsMessage msg = new WsMessage();
+            msg.setPacket(packet);
+            messages.add(msg);
+            encoded.add(WebSocketSession.encode(msg));
+        }
+        WsMessage batch = new WsMessage();
+        batch.setBatch(messages);
+
+        String joined = WebSocketSession.encodeBatch(encoded);
+        Assert.assertEquals(new Gson().toJson(batch), joined);
+
+        WsMessage decoded = new Gson().fromJson(joined, WsMessage.class);
+        Assert.assertEquals(2, decoded.getBatch().size());
+        Assert.assertEquals(messages.get(1).getPacket(), decoded.getBatch().get(1).getPacket());
+
+        batch.setSequence(4711L);
+        joined = WebSocketSession.encodeBatch(encoded, 4711L);
+        Assert.assertEquals(new Gson().toJson(batch), joined);
+        Assert.assertEquals(Long.valueOf(4711L), WsMessageCodec.decode(joined).getSequence());
+    }
+
+}
@@ -0,0 +1,83 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.virtualnet.common.message.WsMessage;
+
+public class BinaryFrameCodecTest {
+
+    private static final String VDM = "!BSVDM,1,1,,A,15MgK45P3@G?fl0E`JbR0OwT0@MS,0*4E";
+
+    @Test
+    public void roundTrip() {
+        byte[] first = BinaryFrameCodec.encode("$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n" + VDM,
+                1388534400123L, 1363171158375L);
+        byte[] second = BinaryFrameCodec.encode(VDM, null, null);
+        Assert.assertEquals(3 + VDM.length(), second.length);
+        ByteBuffer frame = ByteBuffer.allocate(first.length + second.length).put(first).put(second);
+        frame.flip();
+
+        List<WsMessage> messages = BinaryFrameCodec.decode(frame);
+        Assert.assertEquals(2, messages.size());
+        Assert.assertEquals(VDM, messages.get(0).getPacket());
+        Assert.assertEquals(Long.valueOf(1388534400123L), messages.get(0).getIngestTime());
+        Assert.assertEquals(Long.valueOf(1363171158375L), messages.get(0).getTimestamp());
+        Assert.assertEquals(VDM, messages.get(1).getPacket());
+        Assert.assertNull(messages.get(1).getIngestTime());
+        Assert.assertNull(messages.get(1).getTimestamp());
+    }
+
+    @Test
+    public void sequence() {
+        byte[] record = BinaryFrameCodec.encode(VDM, null, null);
+        byte[] sequence = BinaryFrameCodec.encodeSequence(1234567890123L);
+        ByteBuffer frame = ByteBuffer.allocate(record.length + sequence.length).put(record).put(sequence);
+        frame.flip();
+
+        List<WsMessage> messages = BinaryFrameCodec.decode(frame);
+        Assert.assertEquals(2, messages.size());
+        Assert.assertNull(messages.get(0).getSequence());
+        Assert.assertNull(messages.get(1).getPacket());
+        Assert.assertEquals(Long.valueOf(1234567890123L), messages.get(1).getSequence());
+    }
+
+    @Test
+    public void aisSentences() {
+        String part1 = "!AIVDM,2,1,5,A,53@nhr@00000I@cC;3P@4q0ThuB0<tlEB222220j0h72240Ht4P00000,0*7C";
+        String part2 = "!AIVDM,2,2,5,A,000000000000000,2*38";
+        Assert.assertSame(VDM, BinaryFrameCodec.aisSentences(VDM));
+        Assert.assertEquals(part1 + "\r\n" + part2,
+                BinaryFrameCodec.aisSentences("\\s:2190047,c:1363171158*1F\\" + part1 + "\r\n" + part2 + "\r\n"));
+        Assert.assertEquals("", BinaryFrameCodec.aisSentences("$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void truncated() {
+        byte[] record = BinaryFrameCodec.encode(VDM, null, null);
+        BinaryFrameCodec.decode(ByteBuffer.wrap(record, 0, record.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVersion() {
+        BinaryFrameCodec.decode(ByteBuffer.wrap(new byte[] { 0x20, 0, 0 }));
+    }
+
+}
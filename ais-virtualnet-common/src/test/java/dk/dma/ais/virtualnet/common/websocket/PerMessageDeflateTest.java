@@ -0,0 +1,93 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.websocket;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.websocket.Extension;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PerMessageDeflateTest {
+
+    @Test
+    public void negotiate() {
+        List<Extension> accepted = PerMessageDeflate.negotiate(
+                Arrays.asList(offer("x-webkit-deflate-frame", null, null), new PerMessageDeflate(true)), true, true);
+        Assert.assertEquals(1, accepted.size());
+        Assert.assertEquals(PerMessageDeflate.NAME, accepted.get(0).getName());
+        Assert.assertTrue(accepted.get(0).getParameters().isEmpty());
+
+        // Either end may ask to drop the dictionary between messages
+        PerMessageDeflate deflate = (PerMessageDeflate) PerMessageDeflate.negotiate(
+                Collections.<Extension> singletonList(new PerMessageDeflate(false, true)), true, true).get(0);
+        Assert.assertFalse(deflate.isClientContextTakeover());
+        Assert.assertTrue(deflate.isServerContextTakeover());
+        deflate = (PerMessageDeflate) PerMessageDeflate.negotiate(
+                Collections.<Extension> singletonList(new PerMessageDeflate(true)), true, false).get(0);
+        Assert.assertFalse(deflate.isClientContextTakeover());
+        Assert.assertFalse(deflate.isServerContextTakeover());
+        Assert.assertEquals("permessage-deflate; client_no_context_takeover; server_no_context_takeover",
+                deflate.toString());
+
+        Assert.assertTrue(PerMessageDeflate.negotiate(
+                Collections.<Extension> singletonList(new PerMessageDeflate(true)), false, true).isEmpty());
+    }
+
+    @Test
+    public void windowBits() {
+        // A smaller window for the server is declined, falling back to the next offer
+        List<Extension> accepted = PerMessageDeflate.negotiate(Arrays.asList(
+                offer(PerMessageDeflate.NAME, PerMessageDeflate.SERVER_MAX_WINDOW_BITS, "10"),
+                offer(PerMessageDeflate.NAME, PerMessageDeflate.SERVER_MAX_WINDOW_BITS, "15")), true, true);
+        Assert.assertEquals(1, accepted.size());
+        Assert.assertTrue(accepted.get(0).getParameters().isEmpty());
+
+        Assert.assertTrue(PerMessageDeflate.negotiate(
+                Collections.singletonList(offer(PerMessageDeflate.NAME, PerMessageDeflate.SERVER_MAX_WINDOW_BITS, "9")),
+                true, true).isEmpty());
+    }
+
+    private static Extension offer(final String name, final String parameter, final String value) {
+        return new Extension() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public List<Parameter> getParameters() {
+                if (parameter == null) {
+                    return Collections.emptyList();
+                }
+                return Collections.<Parameter> singletonList(new Parameter() {
+                    @Override
+                    public String getName() {
+                        return parameter;
+                    }
+
+                    @Override
+                    public String getValue() {
+                        return value;
+                    }
+                });
+            }
+        };
+    }
+
+}
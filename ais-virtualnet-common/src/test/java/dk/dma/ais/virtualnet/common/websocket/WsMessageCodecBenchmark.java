@@ -0,0 +1,103 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.websocket;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.gson.Gson;
+
+import dk.dma.ais.virtualnet.common.message.WsMessage;
+
+/**
+ * Compares {@link WsMessageCodec} and {@link BinaryFrameCodec} with the reflective Gson encoding and decoding of a
+ * packet message. Run with main method, not part of the unit tests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WsMessageCodecBenchmark {
+
+    private static final Gson GSON = new Gson();
+
+    WsMessage message = new WsMessage();
+
+    String encoded;
+
+    byte[] record;
+
+    @Setup
+    public void setup() {
+        message.setPacket("$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n"
+                + "!BSVDM,1,1,,A,15MgK45P3@G?fl0E`JbR0OwT0@MS,0*4E");
+        encoded = GSON.toJson(message);
+        record = BinaryFrameCodec.encode(message.getPacket(), null, 1363171158375L);
+    }
+
+    @Benchmark
+    public String encodeGson() {
+        return GSON.toJson(message);
+    }
+
+    @Benchmark
+    public String encodeCodec() {
+        return WsMessageCodec.encode(message);
+    }
+
+    @Benchmark
+    public byte[] encodeBinary() {
+        return BinaryFrameCodec.encode(message.getPacket(), null, 1363171158375L);
+    }
+
+    @Benchmark
+    public WsMessage decodeGson() {
+        return GSON.fromJson(encoded, WsMessage.class);
+    }
+
+    @Benchmark
+    public WsMessage decodeCodec() {
+        return WsMessageCodec.decode(encoded);
+    }
+
+    @Benchmark
+    public List<WsMessage> decodeBinary() {
+        return BinaryFrameCodec.decode(ByteBuffer.wrap(record));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(WsMessageCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+
+}
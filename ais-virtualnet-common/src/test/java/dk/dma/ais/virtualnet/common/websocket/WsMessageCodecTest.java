@@ -0,0 +1,97 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.common.websocket;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+
+import dk.dma.ais.virtualnet.common.message.Subscription;
+import dk.dma.ais.virtualnet.common.message.WsMessage;
+
+public class WsMessageCodecTest {
+
+    private static final Gson GSON = new Gson();
+
+    @Test
+    public void encodesLikeGson() {
+        WsMessage packet = new WsMessage();
+        packet.setPacket("$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n"
+                + "!BSVDM,1,1,,A,15MgK45P3@G?fl0E`JbR0OwT0@MS,0*4E");
+        packet.setIngestTime(1388534400123L);
+        assertEncoding(packet);
+
+        WsMessage hello = new WsMessage();
+        hello.setAuthToken("21e26e43-04d0-41a8-808f-900a636dcdf7");
+        hello.setCapabilities(Arrays.asList(WsMessage.CAPABILITY_BATCH, null));
+        hello.setSubscription(new Subscription(55.7, 12.6, 80000));
+        assertEncoding(hello);
+        hello.setSubscription(new Subscription(null, null, 0));
+        assertEncoding(hello);
+
+        WsMessage batch = new WsMessage();
+        batch.setBatch(Arrays.asList(packet, null, new WsMessage()));
+        assertEncoding(batch);
+        assertEncoding(new WsMessage());
+    }
+
+    @Test
+    public void escapesLikeGson() {
+        Random random = new Random(42);
+        for (int i = 0; i < 1000; i++) {
+            char[] chars = new char[20];
+            for (int j = 0; j < chars.length; j++) {
+                chars[j] = (char) (random.nextBoolean() ? random.nextInt(128) : 0x2000 + random.nextInt(64));
+            }
+            WsMessage message = new WsMessage();
+            message.setPacket(new String(chars));
+            assertEncoding(message);
+        }
+    }
+
+    @Test
+    public void decodesAnyOrder() {
+        WsMessage message = WsMessageCodec.decode("{\"ingestTime\":12,\"unknown\":{\"a\":[1,2]},"
+                + "\"packet\":\"x\\u003dy\",\"authToken\":null,\"subscription\":{\"radius\":100.0,\"lat\":55}}");
+        Assert.assertEquals("x=y", message.getPacket());
+        Assert.assertEquals(Long.valueOf(12), message.getIngestTime());
+        Assert.assertNull(message.getAuthToken());
+        Assert.assertEquals(55, message.getSubscription().getLat(), 0);
+        Assert.assertNull(message.getSubscription().getLon());
+        Assert.assertEquals(100, message.getSubscription().getRadius(), 0);
+        Assert.assertNull(WsMessageCodec.decode(""));
+        // Lenient like Gson
+        Assert.assertEquals("x", WsMessageCodec.decode("{'packet':x}").getPacket());
+    }
+
+    @Test(expected = JsonSyntaxException.class)
+    public void invalid() {
+        WsMessageCodec.decode("{\"packet\":\"x\"");
+    }
+
+    private static void assertEncoding(WsMessage message) {
+        String encoded = WsMessageCodec.encode(message);
+        Assert.assertEquals(GSON.toJson(message), encoded);
+        // Decoding and encoding again gives the same
+        Assert.assertEquals(encoded, WsMessageCodec.encode(WsMessageCodec.decode(encoded)));
+        Assert.assertEquals(encoded, GSON.toJson(WsMessageCodec.decode(encoded)));
+    }
+
+}
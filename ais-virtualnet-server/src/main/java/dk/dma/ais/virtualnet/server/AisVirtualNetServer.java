@@ -14,9 +14,15 @@
  */
 package dk.dma.ais.virtualnet.server;
 
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import net.jcip.annotations.ThreadSafe;
 
@@ -26,10 +32,16 @@ import org.slf4j.LoggerFactory;
 import dk.dma.ais.bus.AisBus;
 import dk.dma.ais.bus.consumer.DistributerConsumer;
 import dk.dma.ais.bus.provider.CollectorProvider;
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.message.IVesselPositionMessage;
 import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.message.MetricsMessage;
 import dk.dma.ais.virtualnet.common.message.StatusMessage;
+import dk.dma.ais.virtualnet.common.metrics.LatencyHistogram;
 import dk.dma.ais.virtualnet.common.table.TargetTable;
 import dk.dma.ais.virtualnet.server.rest.AisVirtualNetServerProvider;
+import dk.dma.enav.model.geometry.Position;
 import dk.dma.enav.util.function.Consumer;
 
 /**
@@ -48,12 +60,109 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
 
     private final DistributerConsumer distributer = new DistributerConsumer();
 
-    private final TargetTable targetTable = new TargetTable();
+    private final TargetTable targetTable;
+
+    /**
+     * Serialized target table for the REST clients
+     */
+    private final CachedTargetTable cachedTargetTable;
+
+    /**
+     * Snapshot of the target table, null if not used
+     */
+    private final TargetTableSnapshot snapshot;
+
+    private final long snapshotInterval;
+
+    /**
+     * Interval between removing expired targets from the target table
+     */
+    private static final long HOUSEKEEPING_INTERVAL = 10 * 1000; // 10 sec
+
+    /**
+     * Seconds a session upgraded with a handshake token has to open before the token is given up
+     */
+    private static final int HANDSHAKE_TIMEOUT = 30;
+
+    private final int backfillRate;
+
+    /**
+     * If position reports are conflated for clients falling behind instead of disconnecting them
+     */
+    private final boolean conflate;
+
+    /**
+     * If packets are sent in binary frames to clients that can receive them
+     */
+    private final boolean binaryFraming;
+
+    /**
+     * If clients may negotiate permessage-deflate compression, and if the compression dictionary may be kept between
+     * messages
+     */
+    private final boolean compression;
+    private final boolean compressionContextTakeover;
+
+    /**
+     * Seconds a dropped session can be resumed
+     */
+    private final int resumeTimeout;
+
+    /**
+     * Tokens of dropped sessions that can be resumed, still held and with the MMSI reserved
+     */
+    private final ConcurrentHashMap<String, ParkedToken> parkedTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Tokens issued or resumed in a handshake, until the session is opened
+     */
+    private final ConcurrentHashMap<String, Object> handshakeTokens = new ConcurrentHashMap<>();
+
+    /**
+     * Time in milliseconds until which the last dropped session can be resumed
+     */
+    private volatile long resumableUntil;
 
     private final Authenticator authenticator;
 
     private final MmsiBroker mmsiBroker;
 
+    private final int batchSize;
+
+    private final int batchWindow;
+
+    private final int maxInFlightWrites;
+
+    /**
+     * Nanoseconds from ingest to completed write for all clients
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Frames read by all clients
+     */
+    private final BroadcastRing ring;
+
+    /**
+     * Number of frames between signalling all clients
+     */
+    private final int keepUpInterval;
+
+    /**
+     * Threads sending to the clients
+     */
+    private final SendDispatcher dispatcher;
+
+    /**
+     * Connected clients by receive area
+     */
+    private final ClientGrid clientGrid = new ClientGrid();
+
+    /**
+     * Number of sessions closed because sending to them failed
+     */
+    private final LongAdder sessionErrors = new LongAdder();
+
     /**
      * Connected clients
      */
@@ -73,6 +182,39 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
         // Create MMSI broker
         mmsiBroker = new MmsiBroker();
 
+        batchSize = conf.getBatchSize();
+        batchWindow = conf.getBatchWindow();
+        maxInFlightWrites = Math.max(1, conf.getMaxInFlightWrites());
+        int sendThreads = conf.getSendThreads();
+        if (sendThreads <= 0) {
+            sendThreads = Runtime.getRuntime().availableProcessors();
+        }
+        dispatcher = new SendDispatcher(sendThreads);
+        ring = new BroadcastRing(conf.getRingSize(), conf.isTraceLatency());
+        keepUpInterval = Math.max(1, ring.getCapacity() / 4);
+        Map<AisTargetType, Integer> ttls = new EnumMap<>(AisTargetType.class);
+        for (TargetTypeTtl ttl : conf.getTargetTypeTtls()) {
+            ttls.put(ttl.getTargetType(), ttl.getTtl());
+        }
+        // The last packets of the targets are replayed to new clients
+        targetTable = new TargetTable(conf.getTargetTtl(), ttls, true);
+        cachedTargetTable = new CachedTargetTable(targetTable, conf.getTargetTableCacheTime());
+        String snapshotFile = conf.getTargetSnapshotFile();
+        if (snapshotFile != null && !snapshotFile.isEmpty()) {
+            snapshot = new TargetTableSnapshot(targetTable, Paths.get(snapshotFile));
+            // Start with the targets from before the restart
+            snapshot.load();
+        } else {
+            snapshot = null;
+        }
+        snapshotInterval = Math.max(1, conf.getTargetSnapshotInterval()) * 1000L;
+        backfillRate = conf.getBackfillRate();
+        conflate = conf.isConflate();
+        binaryFraming = conf.isBinaryFraming();
+        compression = conf.isCompression();
+        compressionContextTakeover = conf.isCompressionContextTakeover();
+        resumeTimeout = conf.getResumeTimeout();
+
         // Create AisBus
         aisBus = conf.getAisbusConfiguration().getInstance();
         // Initialize distributer and register in aisbus
@@ -91,6 +233,29 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
         return message;
     }
 
+    /**
+     * Get the outbound metrics of the connected clients
+     * 
+     * @return
+     */
+    public MetricsMessage getMetrics() {
+        MetricsMessage message = new MetricsMessage();
+        for (WebSocketServerSession client : clients) {
+            message.getClients().add(client.getMetrics());
+        }
+        message.setLatency50(SessionMetrics.millis(latency.getValueAtPercentile(50)));
+        message.setLatency99(SessionMetrics.millis(latency.getValueAtPercentile(99)));
+        message.setLatency999(SessionMetrics.millis(latency.getValueAtPercentile(99.9)));
+        message.setLatencyMax(SessionMetrics.millis(latency.getMax()));
+        message.setSessionErrors(sessionErrors.sum());
+        authenticator.fill(message);
+        return message;
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
     /**
      * Accept packet from AisBus
      */
@@ -99,11 +264,50 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
         LOG.debug("Accepted message from DistributerConsumer");
         // Maintain target table
         targetTable.update(packet);
-        // Distribute packet to clients
-        for (WebSocketServerSession client : clients) {
-            LOG.debug("\tEnqueing at client");
-            client.enqueuePacket(packet);
-            LOG.debug("\t\tDone enqueing at client");
+        // Sessions dropped recently may resume and need the packets in the ring
+        if (clients.isEmpty() && System.currentTimeMillis() > resumableUntil) {
+            return;
+        }
+        // Place packets without a position at the last known position of the target
+        AisMessage message = packet.tryGetAisMessage();
+        Position targetPosition = null;
+        if (message != null && !(message instanceof IVesselPositionMessage)) {
+            targetPosition = targetTable.getPosition(message.getUserId());
+        }
+        // Traffic to and from the virtual transponders bypasses the bulk stream
+        boolean priority = message != null && !clientGrid.getByMmsi(message.getUserId()).isEmpty();
+        if (!priority) {
+            for (int destination : PacketFrame.getDestinations(message)) {
+                priority |= !clientGrid.getByMmsi(destination).isEmpty();
+            }
+        }
+        // Encode once and publish the frame to the ring read by all clients
+        PacketFrame frame = ring.publish(packet, targetPosition, priority);
+        // Sender and addressees
+        for (WebSocketServerSession client : clientGrid.getByMmsi(frame.getMmsi())) {
+            client.enqueuePacket(frame);
+        }
+        for (int i = 0; i < frame.getDestinationCount(); i++) {
+            for (WebSocketServerSession client : clientGrid.getByMmsi(frame.getDestination(i))) {
+                client.enqueuePacket(frame);
+            }
+        }
+        for (WebSocketServerSession client : clientGrid.getEverywhere()) {
+            client.enqueuePacket(frame);
+        }
+        // Only signal clients whose receive area may cover the position
+        if (frame.hasPosition()) {
+            for (WebSocketServerSession client : clientGrid.getCell(frame.getLat(), frame.getLon())) {
+                if (client.accepts(frame)) {
+                    client.enqueuePacket(frame);
+                }
+            }
+        }
+        // Now and then let the other clients catch up with the ring
+        if (frame.getSequence() % keepUpInterval == 0) {
+            for (WebSocketServerSession client : clients) {
+                client.skipPacket(frame);
+            }
         }
     }
 
@@ -116,6 +320,13 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
         collector.accept(packet);
     }
 
+    /**
+     * Count a session closed because sending to it failed
+     */
+    public void sessionFailed() {
+        sessionErrors.increment();
+    }
+
     /**
      * Add a new client
      * 
@@ -124,6 +335,7 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
     public void addClient(WebSocketServerSession session) {
         LOG.info("Adding client");
         clients.add(session);
+        clientGrid.add(session);
         LOG.info("Client count: " + clients.size());
     }
 
@@ -135,6 +347,7 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
     public void removeClient(WebSocketServerSession session) {
         LOG.info("Removing client");
         clients.remove(session);
+        clientGrid.remove(session);
         LOG.info("Client count: " + clients.size());
     }
 
@@ -181,6 +394,8 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
             client.close();
         }
 
+        dispatcher.shutdown();
+
         LOG.info("Waiting for server to stop");
         this.interrupt();
         try {
@@ -190,17 +405,26 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
             e.printStackTrace();
         }
 
+        if (snapshot != null) {
+            snapshot.save();
+        }
     }
 
     @Override
     public void run() {
+        long lastSnapshot = System.currentTimeMillis();
         while (true) {
             try {
-                Thread.sleep(10000);
+                Thread.sleep(Math.min(HOUSEKEEPING_INTERVAL, snapshotInterval));
             } catch (InterruptedException e) {
                 return;
             }
+            // Targets expire on updates too, but the feed may have gone quiet
             targetTable.cleanup();
+            if (snapshot != null && System.currentTimeMillis() - lastSnapshot >= snapshotInterval) {
+                snapshot.save();
+                lastSnapshot = System.currentTimeMillis();
+            }
         }
     }
 
@@ -213,6 +437,94 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
         return targetTable;
     }
 
+    /**
+     * Get the serialized alive target table
+     * 
+     * @return
+     */
+    public CachedTargetTable getCachedTargetTable() {
+        return cachedTargetTable;
+    }
+
+    /**
+     * Maximum number of packets per second replayed to a new client
+     * 
+     * @return
+     */
+    public int getBackfillRate() {
+        return backfillRate;
+    }
+
+    public boolean isConflate() {
+        return conflate;
+    }
+
+    public boolean isBinaryFraming() {
+        return binaryFraming;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public boolean isCompressionContextTakeover() {
+        return compressionContextTakeover;
+    }
+
+    /**
+     * Maximum number of packets in a client batch
+     * 
+     * @return
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * Maximum time in milliseconds to wait for a client batch to fill
+     * 
+     * @return
+     */
+    public int getBatchWindow() {
+        return batchWindow;
+    }
+
+    /**
+     * Maximum number of uncompleted writes to a client
+     * 
+     * @return
+     */
+    public int getMaxInFlightWrites() {
+        return maxInFlightWrites;
+    }
+
+    /**
+     * Get ring buffer of frames to send to the clients
+     * 
+     * @return
+     */
+    public BroadcastRing getRing() {
+        return ring;
+    }
+
+    /**
+     * Get index of clients by receive area
+     * 
+     * @return
+     */
+    public ClientGrid getClientGrid() {
+        return clientGrid;
+    }
+
+    /**
+     * Get dispatcher running the client sends
+     * 
+     * @return
+     */
+    public SendDispatcher getDispatcher() {
+        return dispatcher;
+    }
+
     /**
      * Get authenticator
      * 
@@ -232,13 +544,174 @@ public class AisVirtualNetServer extends Thread implements Consumer<AisPacket> {
     }
 
     /**
-     * Check token
+     * Check token and keep it valid until released
      * 
      * @param authToken
      * @return
      */
-    public boolean checkToken(String authToken) {
-        return authenticator.validate(authToken);
+    public boolean holdToken(String authToken) {
+        return authenticator.hold(authToken);
+    }
+
+    /**
+     * Release token held by a session
+     * 
+     * @param authToken
+     */
+    public void releaseToken(String authToken) {
+        authenticator.release(authToken);
+    }
+
+    /**
+     * Keep the token and MMSI reservation of a dropped session for a while, so the session can be resumed. The token
+     * is released and the MMSI reservation with it unless resumed before the timeout. Only the user the token was
+     * issued to can resume it, with the same MMSI.
+     * 
+     * @param authToken
+     *            token held by the session
+     * @param prioritySent
+     *            priority frames sent ahead of the session's cursor, each followed by the sequence number
+     *            acknowledging it
+     * @return false if sessions cannot be resumed
+     */
+    public boolean parkToken(final String authToken, long[] prioritySent) {
+        if (resumeTimeout <= 0) {
+            return false;
+        }
+        resumableUntil = System.currentTimeMillis() + resumeTimeout * 1000L;
+        final ParkedToken parking = new ParkedToken(authenticator.getUsername(authToken),
+                mmsiBroker.getMmsi(authToken), prioritySent);
+        parkedTokens.put(authToken, parking);
+        dispatcher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Unless resumed, maybe also dropped and parked again meanwhile
+                if (parkedTokens.remove(authToken, parking)) {
+                    LOG.info("Session not resumed");
+                    mmsiBroker.release(authToken);
+                    releaseToken(authToken);
+                }
+            }
+        }, resumeTimeout, TimeUnit.SECONDS);
+        return true;
+    }
+
+    /**
+     * Take over the token of a dropped session
+     * 
+     * @param authToken
+     * @param username
+     *            user resuming the session
+     * @param mmsi
+     *            MMSI of the transponder resuming the session
+     * @return the dropped session if the token is still held and its MMSI reserved for the new session, otherwise
+     *         null
+     */
+    public ParkedToken resumeToken(String authToken, String username, int mmsi) {
+        if (authToken == null) {
+            return null;
+        }
+        ParkedToken parked = parkedTokens.get(authToken);
+        if (parked == null) {
+            return null;
+        }
+        if (!parked.matches(username, mmsi)) {
+            LOG.error("Resume token presented by user " + username + " with MMSI " + mmsi);
+            return null;
+        }
+        return parkedTokens.remove(authToken, parked) ? parked : null;
+    }
+
+    /**
+     * Give up the dropped session of a transponder logging in again instead of resuming, like after a restart, so
+     * its MMSI can be reserved at once
+     * 
+     * @param username
+     * @param mmsi
+     */
+    public void releaseParkedToken(String username, int mmsi) {
+        for (Map.Entry<String, ParkedToken> e : parkedTokens.entrySet()) {
+            if (e.getValue().matches(username, mmsi) && parkedTokens.remove(e.getKey(), e.getValue())) {
+                LOG.info("Releasing dropped session of user " + username + " logging in again");
+                mmsiBroker.release(e.getKey());
+                releaseToken(e.getKey());
+                authenticator.revoke(e.getKey());
+            }
+        }
+    }
+
+    /**
+     * Give the session upgraded with a token from the handshake a while to open. The upgrade may still fail after the
+     * handshake, and the token is then revoked and the MMSI released.
+     * 
+     * @param authToken
+     * @param resumed
+     *            if the token was held by a dropped session
+     */
+    public void awaitSession(final String authToken, final boolean resumed) {
+        final Object pending = new Object();
+        handshakeTokens.put(authToken, pending);
+        dispatcher.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (handshakeTokens.remove(authToken, pending)) {
+                    LOG.info("Session not opened after handshake");
+                    mmsiBroker.release(authToken);
+                    if (resumed) {
+                        releaseToken(authToken);
+                    }
+                    authenticator.revoke(authToken);
+                }
+            }
+        }, HANDSHAKE_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Claim the token from the handshake for the opened session
+     * 
+     * @param authToken
+     * @return false if the token has been given up
+     */
+    public boolean claimToken(String authToken) {
+        return handshakeTokens.remove(authToken) != null;
+    }
+
+    /**
+     * A dropped session that can be resumed
+     */
+    static final class ParkedToken {
+        private final String username;
+        private final Integer mmsi;
+        private final long[] prioritySent;
+
+        ParkedToken(String username, Integer mmsi, long[] prioritySent) {
+            this.username = username;
+            this.mmsi = mmsi;
+            this.prioritySent = prioritySent;
+        }
+
+        boolean matches(String username, int mmsi) {
+            return this.username != null && this.username.equals(username) && this.mmsi != null
+                    && this.mmsi == mmsi;
+        }
+
+        /**
+         * Get the priority frames sent ahead that a client resuming from the sequence number has received. A frame
+         * sent after the last sequence number the client got is not known to be received, and is replayed.
+         * 
+         * @param sequence
+         * @return sequence numbers of the frames, in order
+         */
+        long[] getPriorityReceived(long sequence) {
+            long[] received = new long[prioritySent.length / 2];
+            int n = 0;
+            for (int i = 0; i < prioritySent.length; i += 2) {
+                if (prioritySent[i] >= sequence && prioritySent[i + 1] <= sequence) {
+                    received[n++] = prioritySent[i];
+                }
+            }
+            return Arrays.copyOf(received, n);
+        }
     }
 
 
@@ -18,18 +18,26 @@ import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.time.Clock;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.jcip.annotations.ThreadSafe;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import dk.dma.ais.virtualnet.common.message.MetricsMessage;
 import dk.dma.ais.virtualnet.common.security.Password;
 
 /**
@@ -42,11 +50,70 @@ public class Authenticator {
 
     private static final long TTL = 300000; // 5 min
 
-    private final ConcurrentHashMap<String, Long> tokenMap = new ConcurrentHashMap<>();
+    /**
+     * Time a successful password check is remembered
+     */
+    private static final long VERIFIED_TTL = 600000; // 10 min
+
+    /**
+     * Maximum number of remembered password checks
+     */
+    private static final int VERIFIED_MAX = 10000;
+
+    private final ConcurrentHashMap<String, Token> tokenMap = new ConcurrentHashMap<>();
+
+    /**
+     * Tokens in the order they are due to expire. Tokens renewed after being queued are queued again when reached.
+     */
+    private final ConcurrentLinkedQueue<Token> expiryQueue = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    private final AtomicLong sweeps = new AtomicLong();
+
+    private final AtomicLong tokensExpired = new AtomicLong();
+
+    private final AtomicLong sweepNanos = new AtomicLong();
+
+    private volatile long sweepNanosMax;
+
+    /**
+     * Password checks by username and presented hash, least recently used first. Checks in progress are shared by
+     * concurrent requests with the same credentials, successful checks are kept for {@link #VERIFIED_TTL}, and failed
+     * checks are removed. When full, the least recently used check is evicted. Guarded by itself.
+     */
+    private final Map<String, Verification> verified;
+
+    private final AtomicLong passwordChecks = new AtomicLong();
 
     private final Map<String, String> usersMap = new HashMap<>();
 
+    /**
+     * Time a token is valid after it was issued or last held by a session
+     */
+    private final long tokenTtl;
+
+    private final Clock clock;
+
     public Authenticator(String usersFile) throws IOException {
+        this(usersFile, TTL, VERIFIED_MAX, Clock.systemUTC());
+    }
+
+    Authenticator(String usersFile, long tokenTtl, Clock clock) throws IOException {
+        this(usersFile, tokenTtl, VERIFIED_MAX, clock);
+    }
+
+    Authenticator(String usersFile, long tokenTtl, final int verifiedMax, Clock clock) throws IOException {
+        this.tokenTtl = tokenTtl;
+        this.clock = clock;
+        this.verified = new LinkedHashMap<String, Verification>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Verification> eldest) {
+                return size() > verifiedMax;
+            }
+        };
         // Load users
         try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(usersFile)))) {
             for (String line = reader.readLine(); line != null; line = reader.readLine()) {
@@ -81,12 +148,76 @@ public class Authenticator {
             return null;
         }
         // Check password
-        if (!Password.checkPassword(password, hashed)) {
+        if (!verify(username, password, hashed)) {
             return null;
         }
-        String authToken = UUID.randomUUID().toString();
-        tokenMap.put(authToken, System.currentTimeMillis());
-        return authToken;
+        long now = clock.millis();
+        sweep(now);
+        Token token = new Token(UUID.randomUUID().toString(), username, now + tokenTtl);
+        tokenMap.put(token.id, token);
+        expiryQueue.offer(token);
+        return token.id;
+    }
+
+    /**
+     * Check the password, or use the result of an earlier or ongoing check of the same credentials. Clients hash their
+     * password once, so reconnects present the same hash and do not cost a new bcrypt check.
+     * 
+     * @param username
+     * @param password
+     * @param hashed
+     * @return
+     */
+    private boolean verify(String username, final String password, final String hashed) {
+        // Usernames cannot contain ':'
+        String key = username + ":" + hashed;
+        long now = clock.millis();
+        Verification verification;
+        Verification check = null;
+        synchronized (verified) {
+            verification = verified.get(key);
+            if (verification == null || verification.isDone() && now - verification.created > VERIFIED_TTL) {
+                check = new Verification(now, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        passwordChecks.incrementAndGet();
+                        return Password.checkPassword(password, hashed);
+                    }
+                });
+                verified.put(key, check);
+                verification = check;
+            }
+        }
+        if (check != null) {
+            // Outside the lock, requests with the same credentials wait for the check itself
+            check.run();
+        }
+        boolean result;
+        try {
+            result = verification.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            result = false;
+        }
+        if (!result) {
+            synchronized (verified) {
+                if (verified.get(key) == verification) {
+                    verified.remove(key);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Number of bcrypt password checks made
+     * 
+     * @return
+     */
+    long getPasswordChecks() {
+        return passwordChecks.get();
     }
 
     /**
@@ -96,24 +227,204 @@ public class Authenticator {
      * @return
      */
     public boolean validate(String authToken) {
-        cleanup();
+        long now = clock.millis();
+        sweep(now);
         if (authToken == null) {
             return false;
         }
-        return tokenMap.containsKey(authToken);
+        Token token = tokenMap.get(authToken);
+        return token != null && token.isValid(now);
+    }
+
+    /**
+     * Validate token and keep it valid while held by a session. The token expires {@link #TTL} after the last session
+     * holding it is closed.
+     * 
+     * @param authToken
+     * @return if the token is valid and now held
+     */
+    public boolean hold(String authToken) {
+        long now = clock.millis();
+        sweep(now);
+        if (authToken == null) {
+            return false;
+        }
+        Token token = tokenMap.get(authToken);
+        if (token == null || !token.hold(now)) {
+            return false;
+        }
+        // The token may have been revoked just before it was held
+        if (tokenMap.get(authToken) != token) {
+            token.holders.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Release a token held by a session
+     * 
+     * @param authToken
+     */
+    public void release(String authToken) {
+        Token token = tokenMap.get(authToken);
+        if (token != null) {
+            token.expires = clock.millis() + tokenTtl;
+            token.holders.decrementAndGet();
+        }
+    }
+
+    /**
+     * Get the user a token was issued to
+     * 
+     * @param authToken
+     * @return the username or null if the token is not known
+     */
+    public String getUsername(String authToken) {
+        Token token = authToken == null ? null : tokenMap.get(authToken);
+        return token == null ? null : token.username;
+    }
+
+    /**
+     * Invalidate a token that will not be used
+     * 
+     * @param authToken
+     */
+    public void revoke(String authToken) {
+        tokenMap.remove(authToken);
+    }
+
+    /**
+     * Remove the tokens that have expired. Tokens that are held or have been renewed are queued again. Only one thread
+     * sweeps at a time, and only when the first token in the queue is due, so validation is amortized constant time.
+     */
+    private void sweep(long now) {
+        Token token = expiryQueue.peek();
+        if (token == null || token.deadline > now || !sweeping.compareAndSet(false, true)) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            while ((token = expiryQueue.peek()) != null && token.deadline <= now) {
+                expiryQueue.poll();
+                if (token.expire(now)) {
+                    tokenMap.remove(token.id, token);
+                    tokensExpired.incrementAndGet();
+                } else {
+                    if (token.holders.get() > 0) {
+                        token.expires = now + tokenTtl;
+                    }
+                    token.deadline = token.expires;
+                    expiryQueue.offer(token);
+                }
+            }
+            long nanos = System.nanoTime() - start;
+            sweeps.incrementAndGet();
+            sweepNanos.addAndGet(nanos);
+            if (nanos > sweepNanosMax) {
+                sweepNanosMax = nanos;
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * Number of live tokens
+     * 
+     * @return
+     */
+    int getTokenCount() {
+        return tokenMap.size();
+    }
+
+    /**
+     * Add token metrics to the message
+     * 
+     * @param message
+     */
+    public void fill(MetricsMessage message) {
+        message.setTokens(tokenMap.size());
+        message.setTokensExpired(tokensExpired.get());
+        message.setTokenSweeps(sweeps.get());
+        message.setTokenSweepTime(SessionMetrics.millis(sweepNanos.get()));
+        message.setTokenSweepTimeMax(SessionMetrics.millis(sweepNanosMax));
+    }
+
+    /**
+     * A password check and the time it was started
+     */
+    private static class Verification extends FutureTask<Boolean> {
+        final long created;
+
+        Verification(long created, Callable<Boolean> check) {
+            super(check);
+            this.created = created;
+        }
     }
 
     /**
-     * Remove old tokens
+     * An issued token
      */
-    private void cleanup() {
-        long now = System.currentTimeMillis();
-        for (Iterator<Entry<String, Long>> it = tokenMap.entrySet().iterator(); it.hasNext();) {
-            Long time = it.next().getValue();
-            if (now - time > TTL) {
-                it.remove();
+    private static class Token {
+        static final int EXPIRED = -1;
+
+        final String id;
+        final String username;
+        /**
+         * Number of sessions holding the token, or {@link #EXPIRED} once swept
+         */
+        final AtomicInteger holders = new AtomicInteger();
+
+        /**
+         * Time the token expires unless held by a session
+         */
+        volatile long expires;
+
+        /**
+         * Expiry time when last queued
+         */
+        volatile long deadline;
+
+        Token(String id, String username, long expires) {
+            this.id = id;
+            this.username = username;
+            this.expires = expires;
+            this.deadline = expires;
+        }
+
+        boolean isValid(long now) {
+            return holders.get() > 0 || now < expires;
+        }
+
+        /**
+         * Hold the token unless it has expired
+         * 
+         * @param now
+         * @return if the token is now held
+         */
+        boolean hold(long now) {
+            for (;;) {
+                int held = holders.get();
+                if (held == EXPIRED || held == 0 && now >= expires) {
+                    return false;
+                }
+                if (holders.compareAndSet(held, held + 1)) {
+                    return true;
+                }
             }
         }
+
+        /**
+         * Mark the token expired unless it is valid. Fails if a session holds it at the same time, so a swept token
+         * can no longer be held and a held token is never swept.
+         * 
+         * @param now
+         * @return if the token expired
+         */
+        boolean expire(long now) {
+            return now >= expires && holders.compareAndSet(0, EXPIRED);
+        }
     }
 
 }
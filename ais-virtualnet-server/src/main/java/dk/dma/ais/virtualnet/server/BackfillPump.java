@@ -0,0 +1,129 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import net.jcip.annotations.ThreadSafe;
+
+import dk.dma.ais.virtualnet.common.table.LastPackets;
+
+/**
+ * Replays the last packets of the targets to a client at a limited rate, so a new client gets the current picture
+ * without holding back the live stream. Replays are started by any thread, frames are only taken by the drain task
+ * of the session.
+ */
+@ThreadSafe
+abstract class BackfillPump {
+
+    /**
+     * Frames replayed per second
+     */
+    private final int rate;
+
+    /**
+     * Last packets of the targets still to be replayed, null when there is nothing to replay
+     */
+    private final AtomicReference<Iterator<LastPackets>> entries = new AtomicReference<>();
+
+    /**
+     * If the replay should be done again when the client tells where it is
+     */
+    private volatile boolean awaitingArea;
+
+    /**
+     * Replayed frames waiting to be sent, only touched by the drain task
+     */
+    private final ArrayDeque<PacketFrame> frames = new ArrayDeque<>();
+
+    /**
+     * Number of frames that may be replayed now, refilled at the rate. Only used by the drain task.
+     */
+    private double tokens;
+
+    private long refill;
+
+    BackfillPump(int rate) {
+        this.rate = rate;
+    }
+
+    /**
+     * Start replaying, from the beginning if already replaying
+     * 
+     * @param entries
+     * @param awaitingArea
+     *            if the replay should be done again once the client's area is known
+     */
+    void start(Iterator<LastPackets> entries, boolean awaitingArea) {
+        this.awaitingArea = awaitingArea;
+        this.entries.set(entries);
+    }
+
+    boolean isActive() {
+        return entries.get() != null;
+    }
+
+    boolean isAwaitingArea() {
+        return awaitingArea;
+    }
+
+    /**
+     * Get the next replayed frame if the rate allows
+     * 
+     * @param now
+     *            current value of {@link System#nanoTime()}
+     * @return the frame or null if the replay is done or nothing may be replayed now, see {@link #getWait()}
+     */
+    PacketFrame next(long now) {
+        tokens = Math.min(Math.max(1, rate / 10), tokens + (now - refill) * rate / 1e9);
+        refill = now;
+        Iterator<LastPackets> it = entries.get();
+        if (it == null || tokens < 1) {
+            return null;
+        }
+        while (frames.isEmpty()) {
+            if (!it.hasNext()) {
+                // Unless restarted meanwhile
+                entries.compareAndSet(it, null);
+                return null;
+            }
+            queue(it.next(), frames);
+        }
+        tokens--;
+        return frames.poll();
+    }
+
+    /**
+     * Time until the next frame may be replayed
+     * 
+     * @return nanoseconds, 0 if a frame may be replayed now
+     */
+    long getWait() {
+        return tokens >= 1 ? 0 : (long) ((1 - tokens) * 1e9 / rate);
+    }
+
+    /**
+     * Add the frames to replay for a target
+     * 
+     * @param entry
+     *            last packets of the target
+     * @param frames
+     */
+    protected abstract void queue(LastPackets entry, Queue<PacketFrame> frames);
+
+}
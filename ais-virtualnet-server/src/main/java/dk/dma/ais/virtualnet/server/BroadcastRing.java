@@ -0,0 +1,110 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.jcip.annotations.ThreadSafe;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * Ring buffer of frames shared by all client sessions. Frames are published by a single producer and every session
+ * reads them using its own cursor. A frame is overwritten when the producer has published capacity newer frames,
+ * so a session lagging more than that loses the frames in between.
+ */
+@ThreadSafe
+public class BroadcastRing {
+
+    private final AtomicReferenceArray<PacketFrame> frames;
+
+    private final int mask;
+
+    /**
+     * If the time of ingest is sent with the packets
+     */
+    private final boolean traced;
+
+    /**
+     * Sequence number of the next frame to publish
+     */
+    private volatile long head;
+
+    public BroadcastRing(int size) {
+        this(size, false);
+    }
+
+    public BroadcastRing(int size, boolean traced) {
+        this.traced = traced;
+        int capacity = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        frames = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+    }
+
+    /**
+     * Encode and publish packet. Must only be called from one thread at a time.
+     * 
+     * @param packet
+     * @param targetPosition
+     *            last known position of the sender or null
+     * @param priority
+     *            if the packet is sent by or addressed to a connected virtual transponder
+     * @return the published frame
+     */
+    public PacketFrame publish(AisPacket packet, Position targetPosition, boolean priority) {
+        long seq = head;
+        PacketFrame frame = new PacketFrame(packet, seq, targetPosition, priority, traced);
+        frames.set((int) seq & mask, frame);
+        head = seq + 1;
+        return frame;
+    }
+
+    /**
+     * Get frame with the given sequence number
+     * 
+     * @param seq
+     * @return the frame or null if it has not been published or has been overwritten
+     */
+    public PacketFrame get(long seq) {
+        if (seq >= head) {
+            return null;
+        }
+        PacketFrame frame = frames.get((int) seq & mask);
+        return frame != null && frame.getSequence() == seq ? frame : null;
+    }
+
+    /**
+     * Sequence number of the next frame to be published
+     * 
+     * @return
+     */
+    public long getHead() {
+        return head;
+    }
+
+    /**
+     * Sequence number of the oldest frame not yet overwritten
+     * 
+     * @return
+     */
+    public long getTail() {
+        return Math.max(0, head - frames.length());
+    }
+
+    public int getCapacity() {
+        return frames.length();
+    }
+
+}
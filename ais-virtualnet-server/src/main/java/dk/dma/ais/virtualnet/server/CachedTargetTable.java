@@ -0,0 +1,202 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import net.jcip.annotations.Immutable;
+import net.jcip.annotations.ThreadSafe;
+
+import org.eclipse.persistence.jaxb.JAXBContextFactory;
+import org.eclipse.persistence.jaxb.MarshallerProperties;
+
+import dk.dma.ais.virtualnet.common.message.TargetTableMessage;
+import dk.dma.ais.virtualnet.common.table.TargetTable;
+
+/**
+ * The alive target table serialized to JSON, shared by all requests for a short while. Requests arriving while the
+ * payload is being rebuilt wait for that rebuild instead of doing their own. The table is serialized with MOXy like
+ * the other REST resources.
+ */
+@ThreadSafe
+public class CachedTargetTable {
+
+    private final TargetTable targetTable;
+
+    private final JAXBContext context;
+
+    private final long maxAge;
+
+    private volatile Payload payload;
+
+    private final AtomicReference<FutureTask<Payload>> rebuild = new AtomicReference<>();
+
+    /**
+     * @param targetTable
+     * @param maxAge
+     *            milliseconds a payload is used before checking the table for changes
+     */
+    public CachedTargetTable(TargetTable targetTable, long maxAge) {
+        this.targetTable = targetTable;
+        this.maxAge = TimeUnit.MILLISECONDS.toNanos(maxAge);
+        try {
+            this.context = JAXBContextFactory.createContext(new Class<?>[] { TargetTableMessage.class }, null);
+        } catch (JAXBException e) {
+            throw new IllegalStateException("Failed to create JAXB context", e);
+        }
+    }
+
+    /**
+     * Get the payload, rebuilding it if it is too old and the alive targets may have changed
+     * 
+     * @return
+     */
+    public Payload get() {
+        Payload p = payload;
+        if (p != null && System.nanoTime() - p.created < maxAge) {
+            return p;
+        }
+        FutureTask<Payload> task = rebuild.get();
+        if (task == null) {
+            FutureTask<Payload> newTask = new FutureTask<>(new Callable<Payload>() {
+                @Override
+                public Payload call() throws IOException, JAXBException {
+                    return build(payload);
+                }
+            });
+            if (rebuild.compareAndSet(null, newTask)) {
+                task = newTask;
+                try {
+                    task.run();
+                } finally {
+                    rebuild.set(null);
+                }
+            } else {
+                task = rebuild.get();
+                if (task == null) {
+                    return get();
+                }
+            }
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted waiting for target table", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Failed to build target table", e.getCause());
+        }
+    }
+
+    private Payload build(Payload old) throws IOException, JAXBException {
+        // Taken before the targets are read, so a target expiring meanwhile is not missed
+        int tick = targetTable.getTick();
+        if (old != null && old.version == targetTable.getVersion() && old.tick == tick) {
+            // Nothing changed and no target expired, only renew the payload
+            return payload = new Payload(old.version, tick, old.json, old.gzip, old.checksum);
+        }
+        TargetTableMessage message = targetTable.getAliveTargetTableMessage();
+        ByteArrayOutputStream jsonBytes = new ByteArrayOutputStream();
+        marshaller().marshal(message, jsonBytes);
+        byte[] json = jsonBytes.toByteArray();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(json.length / 4);
+        try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(json);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(json);
+        return payload = new Payload(message.getVersion(), tick, json, bytes.toByteArray(), crc.getValue());
+    }
+
+    /**
+     * Marshaller producing the same JSON as the MOXy provider of the REST resources
+     * 
+     * @return
+     * @throws JAXBException
+     */
+    private Marshaller marshaller() throws JAXBException {
+        Marshaller marshaller = context.createMarshaller();
+        marshaller.setProperty(Marshaller.JAXB_ENCODING, "UTF-8");
+        marshaller.setProperty(MarshallerProperties.MEDIA_TYPE, "application/json");
+        marshaller.setProperty(MarshallerProperties.JSON_INCLUDE_ROOT, false);
+        marshaller.setProperty(MarshallerProperties.JSON_MARSHAL_EMPTY_COLLECTIONS, true);
+        return marshaller;
+    }
+
+    /**
+     * Serialized target table. The arrays are shared and must not be altered.
+     */
+    @Immutable
+    public static final class Payload {
+
+        private final long version;
+        private final int tick;
+        private final byte[] json;
+        private final byte[] gzip;
+
+        /**
+         * Checksum of the JSON, which changes when targets expire without a new version
+         */
+        private final long checksum;
+
+        private final long created = System.nanoTime();
+
+        Payload(long version, int tick, byte[] json, byte[] gzip, long checksum) {
+            this.version = version;
+            this.tick = tick;
+            this.json = json;
+            this.gzip = gzip;
+            this.checksum = checksum;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        /**
+         * Entity tag of the payload, different for each encoding
+         * 
+         * @param gzip
+         *            true for the gzip encoded payload
+         * @return
+         */
+        public String getETag(boolean gzip) {
+            String etag = version + "-" + Long.toHexString(checksum);
+            return gzip ? etag + "-gzip" : etag;
+        }
+
+        public byte[] getJson() {
+            return json;
+        }
+
+        public byte[] getGzip() {
+            return gzip;
+        }
+
+    }
+
+}
@@ -0,0 +1,223 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Index of client sessions by the lat/lon grid cells covered by their receive area. Used to find the sessions that
+ * may want a packet at a given position without looking at all sessions. Updates are rare and serialized, lookups are
+ * lock free.
+ */
+@ThreadSafe
+public class ClientGrid {
+
+    /**
+     * Cell size in degrees
+     */
+    private static final double CELL_SIZE = 1;
+
+    private static final int LAT_CELLS = (int) Math.ceil(180 / CELL_SIZE);
+
+    private static final int LON_CELLS = (int) Math.ceil(360 / CELL_SIZE);
+
+    /**
+     * Areas covering more cells than this are indexed as everywhere
+     */
+    private static final int MAX_CELLS = 400;
+
+    private static final int[] NO_CELLS = new int[0];
+
+    private final ConcurrentHashMap<Integer, Set<WebSocketServerSession>> cells = new ConcurrentHashMap<>();
+
+    /**
+     * Sessions receiving traffic from everywhere
+     */
+    private final Set<WebSocketServerSession> everywhere = newSet();
+
+    /**
+     * Sessions by own MMSI. Non reservable MMSI's can be shared by several sessions.
+     */
+    private final ConcurrentHashMap<Integer, Set<WebSocketServerSession>> byMmsi = new ConcurrentHashMap<>();
+
+    /**
+     * Cells each session is indexed under, only accessed while synchronized
+     */
+    private final Map<WebSocketServerSession, int[]> sessionCells = new HashMap<>();
+
+    /**
+     * MMSI each session is indexed under, only accessed while synchronized
+     */
+    private final Map<WebSocketServerSession, Integer> sessionMmsi = new HashMap<>();
+
+    /**
+     * Add new session to the index
+     * 
+     * @param session
+     */
+    public synchronized void add(WebSocketServerSession session) {
+        sessionCells.put(session, NO_CELLS);
+        update(session);
+    }
+
+    /**
+     * Reindex session after its subscription or MMSI has changed. Sessions not added or already removed are ignored.
+     * 
+     * @param session
+     */
+    public synchronized void update(WebSocketServerSession session) {
+        if (!sessionCells.containsKey(session)) {
+            return;
+        }
+        remove(session);
+        int mmsi = session.getOwnMmsi();
+        if (mmsi >= 0) {
+            Set<WebSocketServerSession> sessions = byMmsi.get(mmsi);
+            if (sessions == null) {
+                sessions = newSet();
+                byMmsi.put(mmsi, sessions);
+            }
+            sessions.add(session);
+            sessionMmsi.put(session, mmsi);
+        }
+        int[] keys = NO_CELLS;
+        if (!session.isSubscribed()) {
+            everywhere.add(session);
+        } else if (session.getArea() != null) {
+            keys = cellsOf(session.getArea());
+            if (keys == null) {
+                everywhere.add(session);
+                keys = NO_CELLS;
+            }
+        }
+        for (int key : keys) {
+            Set<WebSocketServerSession> cell = cells.get(key);
+            if (cell == null) {
+                cell = newSet();
+                cells.put(key, cell);
+            }
+            cell.add(session);
+        }
+        sessionCells.put(session, keys);
+    }
+
+    /**
+     * Remove session from the index
+     * 
+     * @param session
+     */
+    public synchronized void remove(WebSocketServerSession session) {
+        everywhere.remove(session);
+        Integer mmsi = sessionMmsi.remove(session);
+        if (mmsi != null) {
+            Set<WebSocketServerSession> sessions = byMmsi.get(mmsi);
+            sessions.remove(session);
+            if (sessions.isEmpty()) {
+                byMmsi.remove(mmsi);
+            }
+        }
+        int[] keys = sessionCells.remove(session);
+        if (keys == null) {
+            return;
+        }
+        for (int key : keys) {
+            Set<WebSocketServerSession> cell = cells.get(key);
+            cell.remove(session);
+            if (cell.isEmpty()) {
+                cells.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Get sessions whose receive area may cover the position
+     * 
+     * @param lat
+     * @param lon
+     * @return
+     */
+    public Set<WebSocketServerSession> getCell(double lat, double lon) {
+        Set<WebSocketServerSession> cell = cells.get(key(latIndex(lat), lonIndex(lon)));
+        return cell == null ? Collections.<WebSocketServerSession> emptySet() : cell;
+    }
+
+    public Set<WebSocketServerSession> getEverywhere() {
+        return everywhere;
+    }
+
+    /**
+     * Get sessions with the given own MMSI
+     * 
+     * @param mmsi
+     * @return
+     */
+    public Set<WebSocketServerSession> getByMmsi(int mmsi) {
+        Set<WebSocketServerSession> sessions = byMmsi.get(mmsi);
+        return sessions == null ? Collections.<WebSocketServerSession> emptySet() : sessions;
+    }
+
+    /**
+     * Get keys of the cells covered by the bounding box of the area
+     * 
+     * @param area
+     * @return the keys or null if the area is too large to index
+     */
+    static int[] cellsOf(ReceiveArea area) {
+        double lat = area.getCenter().getLatitude();
+        double lon = area.getCenter().getLongitude();
+        int minLat = latIndex(Math.max(-90, lat - area.getLatDelta()));
+        int maxLat = latIndex(Math.min(90, lat + area.getLatDelta()));
+        int lonSpan = area.getLonDelta() >= 180 ? LON_CELLS : (int) Math.floor((lon + area.getLonDelta()) / CELL_SIZE)
+                - (int) Math.floor((lon - area.getLonDelta()) / CELL_SIZE) + 1;
+        lonSpan = Math.min(lonSpan, LON_CELLS);
+        int count = (maxLat - minLat + 1) * lonSpan;
+        if (count > MAX_CELLS) {
+            return null;
+        }
+        int minLon = lonIndex(lon - area.getLonDelta());
+        int[] keys = new int[count];
+        int i = 0;
+        for (int la = minLat; la <= maxLat; la++) {
+            for (int lo = 0; lo < lonSpan; lo++) {
+                keys[i++] = key(la, (minLon + lo) % LON_CELLS);
+            }
+        }
+        return keys;
+    }
+
+    private static int latIndex(double lat) {
+        return Math.min(LAT_CELLS - 1, (int) Math.floor((lat + 90) / CELL_SIZE));
+    }
+
+    private static int lonIndex(double lon) {
+        int index = (int) Math.floor((lon + 180) / CELL_SIZE) % LON_CELLS;
+        return index < 0 ? index + LON_CELLS : index;
+    }
+
+    private static int key(int latIndex, int lonIndex) {
+        return latIndex * LON_CELLS + lonIndex;
+    }
+
+    private static Set<WebSocketServerSession> newSet() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<WebSocketServerSession, Boolean>());
+    }
+
+}
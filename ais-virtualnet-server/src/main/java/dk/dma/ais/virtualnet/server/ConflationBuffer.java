@@ -0,0 +1,139 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import net.jcip.annotations.NotThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.ais.bus.OverflowLogger;
+
+/**
+ * Frames pending for a client that has fallen behind the ring. Position reports only replace the pending report of
+ * their target, while other frames are kept in order. This bounds what a slow client holds by the number of targets
+ * rather than by how far behind it is. Only used by the drain task of a session, except for {@link #size()}.
+ */
+@NotThreadSafe
+final class ConflationBuffer {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConflationBuffer.class);
+
+    private final OverflowLogger overflowLogger = new OverflowLogger(LOG);
+
+    /**
+     * Maximum number of frames other than position reports
+     */
+    private final int capacity;
+
+    private final SessionMetrics metrics;
+
+    /**
+     * Latest position report of each target
+     */
+    private final LinkedHashMap<Integer, PacketFrame> positions = new LinkedHashMap<>();
+
+    /**
+     * Other frames, kept in order
+     */
+    private final ArrayDeque<PacketFrame> frames = new ArrayDeque<>();
+
+    /**
+     * If the client is catching up
+     */
+    private boolean active;
+
+    /**
+     * Number of frames pending, for the metrics
+     */
+    private volatile int size;
+
+    ConflationBuffer(int capacity, SessionMetrics metrics) {
+        this.capacity = capacity;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Start catching up
+     * 
+     * @return false if already catching up
+     */
+    boolean start() {
+        if (active) {
+            return false;
+        }
+        active = true;
+        return true;
+    }
+
+    boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Add a frame read from the ring. The oldest frame other than position reports is dropped when full.
+     * 
+     * @param frame
+     */
+    void add(PacketFrame frame) {
+        if (frame.isPositionReport() && frame.getMmsi() >= 0) {
+            if (positions.put(frame.getMmsi(), frame) != null) {
+                metrics.conflated();
+            }
+        } else {
+            frames.add(frame);
+            if (frames.size() > capacity) {
+                overflowLogger.log("Conflation queue is full");
+                frames.poll();
+                metrics.dropped(1);
+            }
+        }
+        size = frames.size() + positions.size();
+    }
+
+    /**
+     * Get the next pending frame. Frames not superseded are sent first. Catching up ends when nothing is pending.
+     * 
+     * @return the frame or null if the client has caught up
+     */
+    PacketFrame poll() {
+        PacketFrame frame = frames.poll();
+        if (frame == null && !positions.isEmpty()) {
+            Iterator<PacketFrame> it = positions.values().iterator();
+            frame = it.next();
+            it.remove();
+        }
+        if (frame == null && active) {
+            active = false;
+            LOG.debug("Client caught up");
+        }
+        size = frames.size() + positions.size();
+        return frame;
+    }
+
+    /**
+     * Number of frames pending
+     * 
+     * @return
+     */
+    int size() {
+        return size;
+    }
+
+}
@@ -100,6 +100,16 @@ public class MmsiBroker {
         return true;
     }
 
+    /**
+     * Get the MMSI reserved with authToken
+     * 
+     * @param authToken
+     * @return the MMSI or null if there is no reservation
+     */
+    public synchronized Integer getMmsi(String authToken) {
+        return authTokenMmsiMap.get(authToken);
+    }
+
     public synchronized void release(String authToken) {
         LOG.info("Release mmsi authToken: " + authToken);
         Integer mmsi = authTokenMmsiMap.get(authToken);
@@ -144,7 +154,7 @@ public class MmsiBroker {
             if (isActivated()) {
                 return true;
             }
-            long reserveAge = created - System.currentTimeMillis();
+            long reserveAge = System.currentTimeMillis() - created;
             return reserveAge < ACTIVATE_TIME;
         }
 
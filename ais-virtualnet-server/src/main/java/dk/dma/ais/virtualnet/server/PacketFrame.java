@@ -0,0 +1,261 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import net.jcip.annotations.ThreadSafe;
+import dk.dma.ais.message.AisMessage;
+import dk.dma.ais.message.AisMessage12;
+import dk.dma.ais.message.AisMessage6;
+import dk.dma.ais.message.AisMessage7;
+import dk.dma.ais.message.IVesselPositionMessage;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.message.WsMessage;
+import dk.dma.ais.virtualnet.common.websocket.BinaryFrameCodec;
+import dk.dma.ais.virtualnet.common.websocket.WebSocketSession;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * A packet prepared for distribution to the connected clients. The wire representations, text and binary, are each
+ * encoded once when first needed and the same frame is read by every client from the {@link BroadcastRing}. The sender,
+ * position and destinations used for filtering are also only extracted once. Packets without a position of their own,
+ * like static and binary messages, are placed at the last known position of the sender. Traffic to and from the
+ * connected virtual transponders is sent in priority frames delivered ahead of the bulk traffic.
+ */
+@ThreadSafe
+public final class PacketFrame {
+
+    private static final int[] NO_DESTINATIONS = new int[0];
+
+    private final AisPacket packet;
+
+    /**
+     * Encoded {@link WsMessage}, null until first needed
+     */
+    private volatile String text;
+
+    /**
+     * Encoded binary record, null until first needed
+     */
+    private volatile byte[] record;
+
+    /**
+     * Time in milliseconds sent as ingest time or null if not traced
+     */
+    private final Long traceTime;
+
+    private final long sequence;
+
+    private final int mmsi;
+
+    private final double lat;
+
+    private final double lon;
+
+    private final int[] destinations;
+
+    private final boolean positionReport;
+
+    private final boolean priority;
+
+    private final long ingestTime;
+
+    /**
+     * Create frame for packet
+     *
+     * @param packet
+     * @param sequence
+     * @param targetPosition
+     *            last known position of the sender, used for packets not carrying a position themselves, or null
+     * @param priority
+     *            if the packet is sent by or addressed to a connected virtual transponder
+     * @param traced
+     *            if the time of ingest is sent with the packet
+     */
+    public PacketFrame(AisPacket packet, long sequence, Position targetPosition, boolean priority, boolean traced) {
+        this.ingestTime = System.nanoTime();
+        this.packet = packet;
+        this.traceTime = traced ? Long.valueOf(System.currentTimeMillis()) : null;
+        this.sequence = sequence;
+        AisMessage message = packet.tryGetAisMessage();
+        mmsi = message == null ? -1 : message.getUserId();
+        Position pos = null;
+        positionReport = message instanceof IVesselPositionMessage;
+        if (positionReport) {
+            IVesselPositionMessage posMessage = (IVesselPositionMessage) message;
+            if (posMessage.isPositionValid()) {
+                pos = posMessage.getPos().getGeoLocation();
+            }
+        } else {
+            pos = targetPosition;
+        }
+        lat = pos == null ? Double.NaN : pos.getLatitude();
+        lon = pos == null ? Double.NaN : pos.getLongitude();
+        destinations = getDestinations(message);
+        this.priority = priority;
+    }
+
+    /**
+     * Get the MMSIs the message is addressed to
+     * 
+     * @param message
+     *            message or null
+     * @return
+     */
+    static int[] getDestinations(AisMessage message) {
+        if (message instanceof AisMessage6) {
+            return new int[] { (int) ((AisMessage6) message).getDestination() };
+        }
+        if (message instanceof AisMessage12) {
+            return new int[] { (int) ((AisMessage12) message).getDestination() };
+        }
+        if (message instanceof AisMessage7) {
+            // Also covers message 13, unused destinations are 0
+            AisMessage7 ack = (AisMessage7) message;
+            int[] dest = { (int) ack.getDest1(), (int) ack.getDest2(), (int) ack.getDest3(), (int) ack.getDest4() };
+            int count = 0;
+            while (count < dest.length && dest[count] != 0) {
+                count++;
+            }
+            return count == dest.length ? dest : Arrays.copyOf(dest, count);
+        }
+        return NO_DESTINATIONS;
+    }
+
+    public AisPacket getPacket() {
+        return packet;
+    }
+
+    /**
+     * Get the encoded {@link WsMessage} to send as a text frame
+     *
+     * @return
+     */
+    public String getText() {
+        String t = text;
+        if (t == null) {
+            // Frames may be encoded more than once by concurrent readers, but the result is the same
+            WsMessage wsMessage = new WsMessage(packet);
+            wsMessage.setIngestTime(traceTime);
+            t = WebSocketSession.encode(wsMessage);
+            text = t;
+        }
+        return t;
+    }
+
+    /**
+     * Get the packet encoded as a binary record, see {@link BinaryFrameCodec}
+     *
+     * @return
+     */
+    public byte[] getRecord() {
+        byte[] r = record;
+        if (r == null) {
+            Date timestamp = packet.getTimestamp();
+            r = BinaryFrameCodec.encode(packet.getStringMessage(), traceTime,
+                    timestamp == null ? null : timestamp.getTime());
+            record = r;
+        }
+        return r;
+    }
+
+    /**
+     * Position of the frame in the stream of published frames
+     *
+     * @return
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * {@link System#nanoTime()} when the frame was created
+     *
+     * @return
+     */
+    public long getIngestTime() {
+        return ingestTime;
+    }
+
+    /**
+     * MMSI of the sender or -1 if the packet could not be parsed
+     *
+     * @return
+     */
+    public int getMmsi() {
+        return mmsi;
+    }
+
+    /**
+     * Number of MMSI's the packet is addressed to
+     *
+     * @return
+     */
+    public int getDestinationCount() {
+        return destinations.length;
+    }
+
+    public int getDestination(int index) {
+        return destinations[index];
+    }
+
+    /**
+     * If the packet is a position report, which is superseded by the next report from the same sender
+     *
+     * @return
+     */
+    public boolean isPositionReport() {
+        return positionReport;
+    }
+
+    /**
+     * If the frame should be delivered ahead of the bulk traffic
+     *
+     * @return
+     */
+    public boolean isPriority() {
+        return priority;
+    }
+
+    public boolean hasPosition() {
+        return !Double.isNaN(lat);
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    /**
+     * Determine if the packet is an addressed message or acknowledge for the given MMSI
+     *
+     * @param mmsi
+     * @return
+     */
+    public boolean isAddressedTo(int mmsi) {
+        for (int destination : destinations) {
+            if (destination == mmsi) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
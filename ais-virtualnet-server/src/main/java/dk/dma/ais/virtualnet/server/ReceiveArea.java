@@ -0,0 +1,129 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import net.jcip.annotations.Immutable;
+import dk.dma.ais.virtualnet.common.message.Subscription;
+import dk.dma.enav.model.geometry.Position;
+
+/**
+ * Circular area a client receives traffic from. A bounding box is kept to reject most positions without computing
+ * distances.
+ */
+@Immutable
+public final class ReceiveArea {
+
+    /**
+     * Meters per degree of latitude
+     */
+    private static final double METERS_PER_DEGREE = 111120;
+
+    /**
+     * Largest radius in meters a client can subscribe to, well beyond AIS range. Most areas this size are covered by
+     * few enough cells to be indexed in the {@link ClientGrid}.
+     */
+    static final double MAX_RADIUS = 1000 * 1000;
+
+    private final Position center;
+
+    private final double radius;
+
+    private final double latDelta;
+
+    private final double lonDelta;
+
+    public ReceiveArea(double lat, double lon, double radius) {
+        this.center = Position.create(lat, lon);
+        this.radius = radius;
+        latDelta = radius / METERS_PER_DEGREE;
+        // Use the widest part of the box
+        double maxLat = Math.min(89, Math.abs(lat) + latDelta);
+        lonDelta = Math.min(180, latDelta / Math.cos(Math.toRadians(maxLat)));
+    }
+
+    /**
+     * Determine if a client subscription can be turned into an area. The radius must be positive and not above
+     * {@link #MAX_RADIUS}, and a position must be a valid latitude and longitude.
+     * 
+     * @param subscription
+     * @return
+     */
+    public static boolean isValid(Subscription subscription) {
+        double radius = subscription.getRadius();
+        if (!(radius > 0 && radius <= MAX_RADIUS)) {
+            return false;
+        }
+        if (!subscription.hasPosition()) {
+            return true;
+        }
+        double lat = subscription.getLat();
+        double lon = subscription.getLon();
+        return lat >= -90 && lat <= 90 && lon >= -180 && lon <= 180;
+    }
+
+    /**
+     * Create area from a valid client subscription
+     * 
+     * @param subscription
+     * @return the area or null if the subscription has no position
+     */
+    public static ReceiveArea create(Subscription subscription) {
+        if (!subscription.hasPosition()) {
+            return null;
+        }
+        return new ReceiveArea(subscription.getLat(), subscription.getLon(), subscription.getRadius());
+    }
+
+    public boolean contains(double lat, double lon) {
+        if (Math.abs(lat - center.getLatitude()) > latDelta) {
+            return false;
+        }
+        double dLon = Math.abs(lon - center.getLongitude());
+        if (dLon > 180) {
+            dLon = 360 - dLon;
+        }
+        if (dLon > lonDelta) {
+            return false;
+        }
+        return Position.create(lat, lon).rhumbLineDistanceTo(center) <= radius;
+    }
+
+    public Position getCenter() {
+        return center;
+    }
+
+    public double getRadius() {
+        return radius;
+    }
+
+    /**
+     * Half height of the bounding box in degrees
+     * 
+     * @return
+     */
+    public double getLatDelta() {
+        return latDelta;
+    }
+
+    /**
+     * Half width of the bounding box in degrees
+     * 
+     * @return
+     */
+    public double getLonDelta() {
+        return lonDelta;
+    }
+
+}
@@ -0,0 +1,208 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.jcip.annotations.ThreadSafe;
+
+/**
+ * Keeps track of the priority frames a session sends ahead of its cursor, so they are skipped when read from the
+ * ring, and of which of them a client resuming the session has received. Also holds the replay asked for by a
+ * resuming client until the session is authenticated.
+ */
+@ThreadSafe
+final class ReplayTracker {
+
+    private final BroadcastRing ring;
+
+    /**
+     * Priority frames sent ahead of the cursor, in order. Guarded by this.
+     */
+    private final ArrayDeque<PrioritySent> sent = new ArrayDeque<>();
+
+    /**
+     * Priority frames sent ahead that the cursor has since passed, in order, kept until overwritten in the ring. A
+     * client may resume from a sequence number below such a frame after receiving it. Guarded by this.
+     */
+    private final ArrayDeque<PrioritySent> passed = new ArrayDeque<>();
+
+    /**
+     * Sequence number to replay the ring from when authenticated, or -1
+     */
+    private final AtomicLong replayFrom = new AtomicLong(-1);
+
+    /**
+     * Priority frames the resuming client received ahead of the sequence number it resumes from
+     */
+    private volatile long[] replayReceived;
+
+    ReplayTracker(BroadcastRing ring) {
+        this.ring = ring;
+    }
+
+    /**
+     * Replay the ring to a resuming client when authenticated
+     * 
+     * @param from
+     *            sequence number the client resumes from
+     * @param received
+     *            priority frames the client received from the dropped session, not to be replayed
+     */
+    void requestReplay(long from, long[] received) {
+        replayReceived = received;
+        replayFrom.set(from);
+    }
+
+    boolean isReplayRequested() {
+        return replayFrom.get() >= 0;
+    }
+
+    void cancelReplay() {
+        replayFrom.set(-1);
+    }
+
+    /**
+     * Take the replay asked for
+     * 
+     * @return the sequence number to replay from or -1
+     */
+    long takeReplay() {
+        return replayFrom.getAndSet(-1);
+    }
+
+    /**
+     * Skip the priority frames the client received from the dropped session when replaying
+     * 
+     * @param from
+     *            sequence number the replay starts from
+     */
+    void replaying(long from) {
+        long[] received = replayReceived;
+        replayReceived = null;
+        if (received != null) {
+            synchronized (this) {
+                for (long seq : received) {
+                    PrioritySent p = new PrioritySent(seq);
+                    p.acknowledged = from;
+                    sent.addLast(p);
+                }
+            }
+        }
+    }
+
+    /**
+     * Record a priority frame sent ahead of the cursor
+     * 
+     * @param seq
+     */
+    synchronized void sentAhead(long seq) {
+        sent.addLast(new PrioritySent(seq));
+    }
+
+    /**
+     * Move the priority frames sent ahead of the cursor that it has now reached to the passed frames
+     * 
+     * @param seq
+     *            sequence number of a priority frame read from the ring
+     * @return true if the frame has been sent ahead
+     */
+    synchronized boolean pass(long seq) {
+        PrioritySent first;
+        while ((first = sent.peekFirst()) != null && first.sequence < seq) {
+            // Overwritten before the cursor got there
+            sent.pollFirst();
+        }
+        long tail = ring.getTail();
+        while (!passed.isEmpty() && passed.peekFirst().sequence < tail) {
+            passed.pollFirst();
+        }
+        if (first != null && first.sequence == seq) {
+            passed.addLast(sent.pollFirst());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Mark the priority frames sent ahead so far as received by a client resuming from the sequence number
+     * 
+     * @param sequence
+     *            sequence number sent with a batch
+     */
+    synchronized void acknowledge(long sequence) {
+        // The frames sent since the last acknowledgement may have been passed already
+        acknowledge(sent, sequence);
+        acknowledge(passed, sequence);
+    }
+
+    private static void acknowledge(ArrayDeque<PrioritySent> deque, long sequence) {
+        Iterator<PrioritySent> it = deque.descendingIterator();
+        while (it.hasNext()) {
+            PrioritySent p = it.next();
+            if (p.acknowledged >= 0) {
+                return;
+            }
+            p.acknowledged = sequence;
+        }
+    }
+
+    /**
+     * Get the priority frames sent ahead of the cursor that a resuming client may have received, in order
+     * 
+     * @return sequence numbers of the frames, each followed by the sequence number acknowledging it
+     */
+    synchronized long[] getSentAhead() {
+        long[] result = new long[(passed.size() + sent.size()) * 2];
+        int i = acknowledged(passed, result, 0);
+        i = acknowledged(sent, result, i);
+        return Arrays.copyOf(result, i);
+    }
+
+    private static int acknowledged(ArrayDeque<PrioritySent> deque, long[] result, int i) {
+        for (PrioritySent p : deque) {
+            if (p.acknowledged >= 0) {
+                result[i++] = p.sequence;
+                result[i++] = p.acknowledged;
+            }
+        }
+        return i;
+    }
+
+    /**
+     * Forget the frames sent ahead
+     */
+    synchronized void clear() {
+        sent.clear();
+        passed.clear();
+    }
+
+    /**
+     * A priority frame sent ahead of the cursor. Once a batch with a sequence number has been sent after it, a client
+     * resuming from that sequence number or later is known to have received the frame.
+     */
+    private static final class PrioritySent {
+        final long sequence;
+        long acknowledged = -1;
+
+        PrioritySent(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+}
@@ -18,6 +18,8 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
@@ -40,6 +42,40 @@ public class ServerConfiguration {
 
     private int port = 8080;
 
+    private int batchSize = 100;
+
+    private int batchWindow = 5; // 5 ms
+
+    private int sendThreads;
+
+    private int maxInFlightWrites = 4;
+
+    private int ringSize = 8192;
+
+    private int targetTableCacheTime = 1000; // 1 sec
+
+    private int targetTtl = 600; // 10 min
+
+    private List<TargetTypeTtl> targetTypeTtls = new ArrayList<>();
+
+    private String targetSnapshotFile;
+
+    private int targetSnapshotInterval = 30; // 30 sec
+
+    private int backfillRate = 1000;
+
+    private boolean conflate = true;
+
+    private boolean traceLatency;
+
+    private boolean binaryFraming = true;
+
+    private boolean compression = true;
+
+    private boolean compressionContextTakeover = true;
+
+    private int resumeTimeout = 30; // 30 sec
+
     @Parameter(names = "-conf", description = "AisVirtualNetServer server configuration file")
     String confFile = "server.xml";
 
@@ -64,6 +100,207 @@ public class ServerConfiguration {
         this.port = port;
     }
 
+    /**
+     * Maximum number of packets sent in one batch to clients supporting batching. A value of 1 or less disables
+     * batching.
+     * 
+     * @return
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Maximum time in milliseconds a packet is held back waiting for the batch to fill
+     * 
+     * @return
+     */
+    public int getBatchWindow() {
+        return batchWindow;
+    }
+
+    public void setBatchWindow(int batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
+    /**
+     * Number of threads sending to clients. A value of 0 or less uses the number of processors.
+     * 
+     * @return
+     */
+    public int getSendThreads() {
+        return sendThreads;
+    }
+
+    public void setSendThreads(int sendThreads) {
+        this.sendThreads = sendThreads;
+    }
+
+    /**
+     * Maximum number of asynchronous writes to a single client that may be uncompleted at a time
+     * 
+     * @return
+     */
+    public int getMaxInFlightWrites() {
+        return maxInFlightWrites;
+    }
+
+    public void setMaxInFlightWrites(int maxInFlightWrites) {
+        this.maxInFlightWrites = maxInFlightWrites;
+    }
+
+    /**
+     * Number of frames kept for the clients. A client lagging more than this behind loses frames. Rounded up to a
+     * power of two.
+     * 
+     * @return
+     */
+    public int getRingSize() {
+        return ringSize;
+    }
+
+    public void setRingSize(int ringSize) {
+        this.ringSize = ringSize;
+    }
+
+    /**
+     * Milliseconds a serialized target table is served before checking the table for changes
+     * 
+     * @return
+     */
+    public int getTargetTableCacheTime() {
+        return targetTableCacheTime;
+    }
+
+    public void setTargetTableCacheTime(int targetTableCacheTime) {
+        this.targetTableCacheTime = targetTableCacheTime;
+    }
+
+    /**
+     * Seconds a target is kept in the target table after its last message
+     * 
+     * @return
+     */
+    public int getTargetTtl() {
+        return targetTtl;
+    }
+
+    public void setTargetTtl(int targetTtl) {
+        this.targetTtl = targetTtl;
+    }
+
+    /**
+     * Time to live for types of targets not using the default
+     * 
+     * @return
+     */
+    @XmlElement(name = "targetTypeTtl")
+    public List<TargetTypeTtl> getTargetTypeTtls() {
+        return targetTypeTtls;
+    }
+
+    public void setTargetTypeTtls(List<TargetTypeTtl> targetTypeTtls) {
+        this.targetTypeTtls = targetTypeTtls;
+    }
+
+    /**
+     * File the target table is saved to and loaded from at startup. Snapshots are not used if not set or empty.
+     * 
+     * @return
+     */
+    public String getTargetSnapshotFile() {
+        return targetSnapshotFile;
+    }
+
+    public void setTargetSnapshotFile(String targetSnapshotFile) {
+        this.targetSnapshotFile = targetSnapshotFile;
+    }
+
+    /**
+     * Seconds between snapshots of the target table
+     * 
+     * @return
+     */
+    public int getTargetSnapshotInterval() {
+        return targetSnapshotInterval;
+    }
+
+    public void setTargetSnapshotInterval(int targetSnapshotInterval) {
+        this.targetSnapshotInterval = targetSnapshotInterval;
+    }
+
+    /**
+     * Maximum number of packets per second replayed to a client when it connects, to give it the last known position
+     * and static data of the targets. Replay is disabled if 0 or less.
+     * 
+     * @return
+     */
+    public int getBackfillRate() {
+        return backfillRate;
+    }
+
+    public void setBackfillRate(int backfillRate) {
+        this.backfillRate = backfillRate;
+    }
+
+    public boolean isConflate() {
+        return conflate;
+    }
+
+    public void setConflate(boolean conflate) {
+        this.conflate = conflate;
+    }
+
+    public boolean isTraceLatency() {
+        return traceLatency;
+    }
+
+    public void setTraceLatency(boolean traceLatency) {
+        this.traceLatency = traceLatency;
+    }
+
+    public boolean isBinaryFraming() {
+        return binaryFraming;
+    }
+
+    public void setBinaryFraming(boolean binaryFraming) {
+        this.binaryFraming = binaryFraming;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public boolean isCompressionContextTakeover() {
+        return compressionContextTakeover;
+    }
+
+    public void setCompressionContextTakeover(boolean compressionContextTakeover) {
+        this.compressionContextTakeover = compressionContextTakeover;
+    }
+
+    /**
+     * Seconds a dropped transponder session keeps its token and MMSI reservation, so the transponder can reconnect
+     * and have the packets it missed replayed from the ring. Resumption is disabled if 0 or less.
+     * 
+     * @return
+     */
+    public int getResumeTimeout() {
+        return resumeTimeout;
+    }
+
+    public void setResumeTimeout(int resumeTimeout) {
+        this.resumeTimeout = resumeTimeout;
+    }
+
     public static void save(String filename, ServerConfiguration conf) throws JAXBException, FileNotFoundException {
         JAXBContext context = JAXBContext.newInstance(ServerConfiguration.class);
         Marshaller m = context.createMarshaller();
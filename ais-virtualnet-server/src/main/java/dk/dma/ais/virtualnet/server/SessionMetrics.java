@@ -0,0 +1,113 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import net.jcip.annotations.ThreadSafe;
+import dk.dma.ais.virtualnet.common.message.ClientMetricsMessage;
+import dk.dma.ais.virtualnet.common.metrics.LatencyHistogram;
+
+/**
+ * Counters of the outbound traffic of a client session. Updated from the producer, the drain task and write
+ * completions without locking.
+ */
+@ThreadSafe
+public class SessionMetrics {
+
+    private final LongAdder enqueued = new LongAdder();
+
+    private final LongAdder sent = new LongAdder();
+
+    private final LongAdder dropped = new LongAdder();
+
+    private final LongAdder conflated = new LongAdder();
+
+    private final LongAdder bytesSent = new LongAdder();
+
+    /**
+     * Nanoseconds from ingest to completed write
+     */
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    /**
+     * Latencies of all sessions
+     */
+    private final LatencyHistogram totalLatency;
+
+    /**
+     * @param totalLatency
+     *            histogram also recording the latencies of other sessions
+     */
+    public SessionMetrics(LatencyHistogram totalLatency) {
+        this.totalLatency = totalLatency;
+    }
+
+    public void enqueued() {
+        enqueued.increment();
+    }
+
+    public void dropped(long frames) {
+        dropped.add(frames);
+    }
+
+    public void conflated() {
+        conflated.increment();
+    }
+
+    /**
+     * Record a completed write
+     * 
+     * @param ingestTimes
+     *            {@link System#nanoTime()} when the frames of the write were ingested
+     * @param bytes
+     */
+    public void sent(long[] ingestTimes, int bytes) {
+        long now = System.nanoTime();
+        for (long ingestTime : ingestTimes) {
+            latency.record(now - ingestTime);
+            totalLatency.record(now - ingestTime);
+        }
+        sent.add(ingestTimes.length);
+        bytesSent.add(bytes);
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    /**
+     * Copy the counters into a message
+     * 
+     * @param message
+     */
+    public void fill(ClientMetricsMessage message) {
+        message.setEnqueued(enqueued.sum());
+        message.setSent(sent.sum());
+        message.setDropped(dropped.sum());
+        message.setConflated(conflated.sum());
+        message.setBytesSent(bytesSent.sum());
+        message.setLatency50(millis(latency.getValueAtPercentile(50)));
+        message.setLatency99(millis(latency.getValueAtPercentile(99)));
+        message.setLatency999(millis(latency.getValueAtPercentile(99.9)));
+        message.setLatencyMax(millis(latency.getMax()));
+    }
+
+    static double millis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+}
@@ -0,0 +1,120 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.ais.virtualnet.common.table.TargetTable;
+
+/**
+ * Snapshot of the target table kept in a file, so a restarted server starts with the targets it had. The snapshot is
+ * written to a temporary file and moved in place, so a crash never leaves a partial snapshot. The directory is synced
+ * after the move, so the new snapshot survives a crash of the host.
+ */
+@ThreadSafe
+public class TargetTableSnapshot {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TargetTableSnapshot.class);
+
+    private final TargetTable targetTable;
+
+    private final Path file;
+
+    private final Path tmpFile;
+
+    public TargetTableSnapshot(TargetTable targetTable, Path file) {
+        this.targetTable = targetTable;
+        this.file = file;
+        this.tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+    }
+
+    /**
+     * Load the snapshot into the table if there is one. Must be called before the table is updated by others.
+     */
+    public void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        try (InputStream in = Files.newInputStream(file)) {
+            int count = targetTable.readSnapshot(in);
+            LOG.info("Loaded " + count + " targets from " + file + " in " + (System.currentTimeMillis() - start)
+                    + " ms");
+        } catch (IOException e) {
+            LOG.error("Failed to load target table snapshot " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Write a new snapshot of the table
+     */
+    public synchronized void save() {
+        long start = System.currentTimeMillis();
+        int count;
+        try (FileOutputStream fileOut = new FileOutputStream(tmpFile.toFile())) {
+            OutputStream out = new BufferedOutputStream(fileOut, 65536);
+            count = targetTable.writeSnapshot(out);
+            // Make sure the snapshot is on disk before it replaces the old one
+            fileOut.getFD().sync();
+        } catch (IOException e) {
+            LOG.error("Failed to write target table snapshot " + tmpFile + ": " + e.getMessage());
+            return;
+        }
+        try {
+            try {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            LOG.error("Failed to replace target table snapshot " + file + ": " + e.getMessage());
+            return;
+        }
+        syncDirectory();
+        LOG.debug("Saved " + count + " targets to " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Make the move of the snapshot durable. Not all platforms can open a directory, in which case the move is left
+     * to the file system.
+     */
+    private void syncDirectory() {
+        Path dir = file.toAbsolutePath().getParent();
+        if (dir == null) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            LOG.debug("Could not sync directory " + dir + ": " + e.getMessage());
+        }
+    }
+
+}
@@ -0,0 +1,59 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import dk.dma.ais.message.AisTargetType;
+
+/**
+ * Time to live for targets of a given type. To be marshalled and unmarshalled by JAXB as part of the server
+ * configuration.
+ */
+public class TargetTypeTtl {
+
+    private AisTargetType targetType;
+
+    private int ttl;
+
+    public TargetTypeTtl() {
+
+    }
+
+    public TargetTypeTtl(AisTargetType targetType, int ttl) {
+        this.targetType = targetType;
+        this.ttl = ttl;
+    }
+
+    public AisTargetType getTargetType() {
+        return targetType;
+    }
+
+    public void setTargetType(AisTargetType targetType) {
+        this.targetType = targetType;
+    }
+
+    /**
+     * Seconds a target is kept after its last message
+     * 
+     * @return
+     */
+    public int getTtl() {
+        return ttl;
+    }
+
+    public void setTtl(int ttl) {
+        this.ttl = ttl;
+    }
+
+}
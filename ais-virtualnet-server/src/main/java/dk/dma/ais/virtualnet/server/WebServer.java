@@ -14,7 +14,12 @@
  */
 package dk.dma.ais.virtualnet.server;
 
+import java.util.List;
+
 import javax.websocket.DeploymentException;
+import javax.websocket.Extension;
+import javax.websocket.HandshakeResponse;
+import javax.websocket.server.HandshakeRequest;
 import javax.websocket.server.ServerContainer;
 import javax.websocket.server.ServerEndpointConfig;
 import javax.websocket.server.ServerEndpointConfig.Builder;
@@ -29,6 +34,8 @@ import org.glassfish.jersey.servlet.ServletContainer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import dk.dma.ais.virtualnet.common.websocket.PerMessageDeflate;
+import dk.dma.ais.virtualnet.server.rest.MetricsService;
 import dk.dma.ais.virtualnet.server.rest.RestService;
 
 
@@ -68,6 +75,7 @@ public class WebServer {
 
         ResourceConfig config = new ResourceConfig();
         config.register(new RestService(aserver));
+        config.register(new MetricsService(aserver));
         ServletHolder sho = new ServletHolder(new ServletContainer(config));
         sho.setClassName("org.glassfish.jersey.servlet.ServletContainer");
         context.addServlet(sho, "/rest/*");
@@ -79,15 +87,12 @@ public class WebServer {
         // Add our default endpoint.
 
         Builder b = ServerEndpointConfig.Builder.create(WebSocketServerSession.class, "/ws/");
-        b.configurator(new ServerEndpointConfig.Configurator() {
-            @SuppressWarnings({ "unchecked" })
-            public <S> S getEndpointInstance(Class<S> endpointClass) throws InstantiationException {
-                return (S) new WebSocketServerSession(aserver);
-            }
-        });
+        SessionConfigurator configurator = new SessionConfigurator(aserver);
+        b.configurator(configurator);
 
         try {
-            wsContainer.addEndpoint(b.build());
+            configurator.registered = b.build();
+            wsContainer.addEndpoint(configurator.registered);
         } catch (DeploymentException e) {
             throw new RuntimeException("Could not start server", e);
         }
@@ -113,4 +118,43 @@ public class WebServer {
         // server.setHandler(hw);
         server.start();
     }
+
+    /**
+     * Creates the sessions and authenticates transponders during the handshake. The handshake result is handed to the
+     * session in the user properties of the endpoint configuration, which are only per connection because Jetty 9.4
+     * copies the configuration for each upgrade before calling {@link #modifyHandshake}, see the pinned
+     * dependencies.jetty.version. A container passing the shared configuration fails the upgrade instead of leaking
+     * one client's token to another.
+     */
+    static class SessionConfigurator extends ServerEndpointConfig.Configurator {
+        final AisVirtualNetServer aserver;
+
+        /** The configuration registered with the container, shared by all connections */
+        volatile ServerEndpointConfig registered;
+
+        SessionConfigurator(AisVirtualNetServer aserver) {
+            this.aserver = aserver;
+        }
+
+        @Override
+        @SuppressWarnings({ "unchecked" })
+        public <S> S getEndpointInstance(Class<S> endpointClass) throws InstantiationException {
+            return (S) new WebSocketServerSession(aserver);
+        }
+
+        @Override
+        public void modifyHandshake(ServerEndpointConfig sec, HandshakeRequest request, HandshakeResponse response) {
+            if (sec == registered || sec.getUserProperties() == registered.getUserProperties()) {
+                throw new IllegalStateException("Endpoint configuration is shared between connections");
+            }
+            WebSocketServerSession.handshake(aserver, sec.getUserProperties(), request.getHeaders(),
+                    response.getHeaders());
+        }
+
+        @Override
+        public List<Extension> getNegotiatedExtensions(List<Extension> installed, List<Extension> requested) {
+            return PerMessageDeflate.negotiate(requested, aserver.isCompression(),
+                    aserver.isCompressionContextTakeover());
+        }
+    }
 }
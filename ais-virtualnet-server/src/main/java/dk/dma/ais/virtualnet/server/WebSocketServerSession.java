@@ -14,9 +14,23 @@
  */
 package dk.dma.ais.virtualnet.server;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import javax.websocket.CloseReason;
 import javax.websocket.OnClose;
 import javax.websocket.OnOpen;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 
@@ -27,16 +41,18 @@ import org.slf4j.LoggerFactory;
 
 import dk.dma.ais.bus.OverflowLogger;
 import dk.dma.ais.packet.AisPacket;
-import dk.dma.ais.queue.BlockingMessageQueue;
-import dk.dma.ais.queue.IQueueEntryHandler;
-import dk.dma.ais.queue.MessageQueueOverflowException;
-import dk.dma.ais.queue.MessageQueueReader;
+import dk.dma.ais.virtualnet.common.message.ClientMetricsMessage;
+import dk.dma.ais.virtualnet.common.message.ReserveMmsiReplyMessage.ReserveResult;
 import dk.dma.ais.virtualnet.common.message.WsMessage;
+import dk.dma.ais.virtualnet.common.table.LastPackets;
+import dk.dma.ais.virtualnet.common.websocket.BinaryFrameCodec;
+import dk.dma.ais.virtualnet.common.websocket.Handshake;
 import dk.dma.ais.virtualnet.common.websocket.WebSocketSession;
+import dk.dma.enav.model.geometry.Position;
 
 @ThreadSafe
 @ServerEndpoint(value = "/")
-public class WebSocketServerSession extends WebSocketSession implements IQueueEntryHandler<AisPacket> {
+public class WebSocketServerSession extends WebSocketSession {
 
     private static final Logger LOG = LoggerFactory.getLogger(WebSocketServerSession.class);
 
@@ -44,65 +60,758 @@ public class WebSocketServerSession extends WebSocketSession implements IQueueEn
 
     private static final long OVERFLOW_TIMEOUT = 10 * 1000; // 10 sec
 
+    private static final int PRIORITY_QUEUE_SIZE = 1024;
+
+    /**
+     * Session properties set by {@link #handshake}, per connection as checked by {@link WebServer.SessionConfigurator}
+     */
+    private static final String HANDSHAKE_TOKEN = "dk.dma.ais.virtualnet.authToken";
+    private static final String HANDSHAKE_RESULT = "dk.dma.ais.virtualnet.result";
+    private static final String HANDSHAKE_RESUMED = "dk.dma.ais.virtualnet.resumed";
+    private static final String HANDSHAKE_REPLAY = "dk.dma.ais.virtualnet.replay";
+    private static final String HANDSHAKE_RECEIVED = "dk.dma.ais.virtualnet.received";
+
     private final AisVirtualNetServer server;
 
+    private final BroadcastRing ring;
+
+    private final SessionMetrics metrics;
+
     private volatile boolean authenticated;
 
     private volatile String authToken;
 
-    private volatile MessageQueueReader<AisPacket> queueReader;
+    /**
+     * Token kept valid while the session is open
+     */
+    private volatile String heldToken;
+
+    /**
+     * Token issued in the handshake, used for the first message from the client
+     */
+    private volatile String handshakeToken;
+
+    /**
+     * If the handshake token was taken over from a dropped session, still held and with the MMSI activated
+     */
+    private volatile boolean handshakeResumed;
+
+    /**
+     * If the client wants its subscriptions confirmed
+     */
+    private volatile boolean confirmingSubscriptions;
+
+    /**
+     * Encoded confirmation of the last subscription, to be sent after the frames read before the subscription was
+     * applied. Null when there is nothing to confirm.
+     */
+    private final AtomicReference<String> subscriptionConfirmation = new AtomicReference<>();
+
+    /**
+     * If the client wants the sequence numbers to resume the session from
+     */
+    private volatile boolean resumable;
+
+    /**
+     * Last sequence number sent to the client, only touched by the drain task
+     */
+    private long sequenceSent = -1;
+
+    /**
+     * MMSI reserved by the client
+     */
+    private volatile int ownMmsi = -1;
+
+    /**
+     * If the client has subscribed to an area. Clients not subscribing receive everything.
+     */
+    private volatile boolean subscribed;
+
+    /**
+     * Area the client receives traffic from, null until the client knows its own position
+     */
+    private volatile ReceiveArea area;
+
+    /**
+     * Sequence number of the next frame to read from the ring, only advanced by the drain task
+     */
+    private volatile long cursor;
+
+    /**
+     * Number of requested runs of the drain task. Only the caller raising it from zero submits the task, so at most
+     * one dispatcher thread drains the session at a time.
+     */
+    private final AtomicInteger wip = new AtomicInteger();
+
+    /**
+     * Number of asynchronous writes not yet completed
+     */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /**
+     * Time of the last write completed, or started when none were in flight
+     */
+    private volatile long lastProgress;
+
+    /**
+     * Priority frames accepted by the client, sent before anything read from the ring
+     */
+    private final ArrayBlockingQueue<PacketFrame> priorityFrames = new ArrayBlockingQueue<>(PRIORITY_QUEUE_SIZE);
+
+    /**
+     * Priority frames sent ahead of the cursor and the replay asked for by a resuming client
+     */
+    private final ReplayTracker replay;
+
+    /**
+     * If the client has announced that it can receive batches
+     */
+    private volatile boolean batching;
+
+    /**
+     * If the client has announced that it can receive binary frames
+     */
+    private volatile boolean binary;
+
+    /**
+     * Frames waiting to be sent as one batch, only touched by the drain task
+     */
+    private final List<PacketFrame> batch = new ArrayList<>();
+
+    /**
+     * Encoded frames of a text batch, only touched by the drain task
+     */
+    private final List<String> batchTexts = new ArrayList<>();
+
+    private long batchStart;
+
+    /**
+     * If the batch holds a priority frame and should not wait for the window to close
+     */
+    private boolean batchUrgent;
+
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+    private volatile boolean open;
 
     private long overflowStart;
 
+    /**
+     * Sequence number of the last frame the session was signalled about, only used by the producer
+     */
+    private long lastSignalled = -1;
+
+    /**
+     * Last packets of the targets replayed to the client. Before the client tells where it is only the client's own
+     * vessel is replayed, which lets a transponder learn its position.
+     */
+    private final BackfillPump backfill;
+
+    /**
+     * Frames pending while catching up after falling behind
+     */
+    private final ConflationBuffer conflation;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                try {
+                    drain();
+                } catch (RuntimeException e) {
+                    // Leaving the run count raised would stop the session for good
+                    LOG.error("Failed to send to client, closing session", e);
+                    server.sessionFailed();
+                    open = false;
+                    close();
+                } finally {
+                    missed = wip.addAndGet(-missed);
+                }
+            } while (missed != 0);
+        }
+    };
+
+    /**
+     * Signals the session when a batch window closes or more frames may be replayed
+     */
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flushScheduled.set(false);
+            signal();
+        }
+    };
+
+    /**
+     * An asynchronous write of one or more frames, as text or binary
+     */
+    private final class Write implements SendHandler {
+
+        private final String text;
+
+        private final ByteBuffer data;
+
+        private final int bytes;
+
+        private final long[] ingestTimes;
+
+        Write(String text, long[] ingestTimes) {
+            this.text = text;
+            this.data = null;
+            this.bytes = text.length();
+            this.ingestTimes = ingestTimes;
+        }
+
+        Write(ByteBuffer data, long[] ingestTimes) {
+            this.text = null;
+            this.data = data;
+            this.bytes = data.remaining();
+            this.ingestTimes = ingestTimes;
+        }
+
+        boolean send() {
+            return text != null ? sendTextAsync(text, this) : sendBinaryAsync(data, this);
+        }
+
+        @Override
+        public void onResult(SendResult result) {
+            lastProgress = System.currentTimeMillis();
+            inFlight.decrementAndGet();
+            if (result.isOK()) {
+                metrics.sent(ingestTimes, bytes);
+            } else {
+                LOG.error("Failed to send: " + result.getException().getMessage());
+            }
+            signal();
+        }
+    }
+
     public WebSocketServerSession(AisVirtualNetServer server) {
         this.server = server;
+        this.ring = server.getRing();
+        this.metrics = new SessionMetrics(server.getLatency());
+        this.replay = new ReplayTracker(ring);
+        this.conflation = new ConflationBuffer(ring.getCapacity(), metrics);
+        this.backfill = new BackfillPump(server.getBackfillRate()) {
+            @Override
+            protected void queue(LastPackets entry, Queue<PacketFrame> frames) {
+                queueBackfill(entry, frames);
+            }
+        };
+    }
+
+    /**
+     * Authenticate and reserve the MMSI of a transponder sending its credentials in the upgrade request. Clients not
+     * sending them authenticate with a token in their first message. A transponder reconnecting shortly after a drop
+     * with the same username and MMSI takes over the token and MMSI of the dropped session instead, and gets the
+     * packets it missed replayed. The token is given up if the session is not opened.
+     * 
+     * @param server
+     * @param properties
+     *            properties of the session to be opened
+     * @param requestHeaders
+     * @param responseHeaders
+     */
+    static void handshake(AisVirtualNetServer server, Map<String, Object> properties,
+            Map<String, List<String>> requestHeaders, Map<String, List<String>> responseHeaders) {
+        String username = Handshake.getHeader(requestHeaders, Handshake.USERNAME);
+        if (username == null) {
+            return;
+        }
+        ReserveResult result;
+        int mmsi = parseMmsi(Handshake.getHeader(requestHeaders, Handshake.MMSI));
+        String authToken = Handshake.getHeader(requestHeaders, Handshake.RESUME_TOKEN);
+        AisVirtualNetServer.ParkedToken parked = server.resumeToken(authToken, username, mmsi);
+        boolean resumed = parked != null;
+        if (!resumed) {
+            authToken = server.getAuthenticator().authenticate(username,
+                    Handshake.getHeader(requestHeaders, Handshake.PASSWORD));
+        }
+        if (authToken == null) {
+            result = ReserveResult.NOT_AUTHENTICATED;
+        } else if (resumed) {
+            result = ReserveResult.MMSI_RESERVED;
+            properties.put(HANDSHAKE_TOKEN, authToken);
+            properties.put(HANDSHAKE_RESUMED, Boolean.TRUE);
+            // Replay what the client missed if still in the ring
+            long sequence = parseSequence(Handshake.getHeader(requestHeaders, Handshake.RESUME_SEQUENCE));
+            BroadcastRing ring = server.getRing();
+            if (sequence >= ring.getTail() && sequence <= ring.getHead()) {
+                properties.put(HANDSHAKE_REPLAY, sequence);
+                properties.put(HANDSHAKE_RECEIVED, parked.getPriorityReceived(sequence));
+                responseHeaders.put(Handshake.RESUMED, Collections.singletonList("true"));
+            }
+        } else if (mmsi < 0) {
+            result = ReserveResult.MMSI_NOT_FOUND;
+            server.getAuthenticator().revoke(authToken);
+        } else {
+            // A restarted transponder does not wait for its dropped session to time out
+            server.releaseParkedToken(username, mmsi);
+            result = server.getMmsiBroker().reserve(mmsi, authToken);
+            if (result == ReserveResult.MMSI_RESERVED) {
+                properties.put(HANDSHAKE_TOKEN, authToken);
+            } else {
+                server.getAuthenticator().revoke(authToken);
+            }
+        }
+        LOG.info("Handshake for user " + username + ": " + result + (resumed ? " (resumed)" : ""));
+        properties.put(HANDSHAKE_RESULT, result);
+        responseHeaders.put(Handshake.RESULT, Collections.singletonList(result.name()));
+        if (result == ReserveResult.MMSI_RESERVED) {
+            responseHeaders.put(Handshake.TOKEN, Collections.singletonList(authToken));
+            server.awaitSession(authToken, resumed);
+        }
+    }
+
+    private static int parseMmsi(String mmsi) {
+        if (mmsi == null) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(mmsi);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long parseSequence(String sequence) {
+        if (sequence == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(sequence);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     @OnOpen
     public void onWebSocketConnect(Session session) {
-        // Setup message queue and message queue reader
-        queueReader = new MessageQueueReader<>(this, new BlockingMessageQueue<AisPacket>(), 10);
-        queueReader.start();
+        open = true;
+        cursor = ring.getHead();
+        handshakeToken = (String) session.getUserProperties().get(HANDSHAKE_TOKEN);
+        handshakeResumed = session.getUserProperties().containsKey(HANDSHAKE_RESUMED);
+        Long replayFrom = (Long) session.getUserProperties().get(HANDSHAKE_REPLAY);
+        if (replayFrom != null) {
+            replay.requestReplay(replayFrom, (long[]) session.getUserProperties().get(HANDSHAKE_RECEIVED));
+        }
         super.onWebSocketConnect(session);
         server.addClient(this);
+        Object result = session.getUserProperties().get(HANDSHAKE_RESULT);
+        String ht = handshakeToken;
+        if (ht != null && !server.claimToken(ht)) {
+            // Opened too late, the token has been given up
+            handshakeToken = null;
+            close();
+        } else if (result != null && result != ReserveResult.MMSI_RESERVED) {
+            close();
+        }
     }
 
     @OnClose
     public void onWebSocketClose(CloseReason reason) {
-        MessageQueueReader<AisPacket> qr = queueReader;
+        open = false;
         String at = authToken;
-        if (qr != null) {
-            qr.cancel();
-        }
-        queueReader = null;
+        String held = heldToken;
+        heldToken = null;
+        // Parked before the client is removed, so the packets are still published to the ring for it to resume
+        boolean parked = resumable && held != null && held.equals(at) && server.parkToken(held, replay.getSentAhead());
         server.removeClient(this);
-        if (at != null) {
-            server.getMmsiBroker().release(at);
+        if (parked) {
+            // Token and MMSI kept for the client to resume the session
+            LOG.info("Session can be resumed");
+        } else {
+            if (at != null) {
+                server.getMmsiBroker().release(at);
+            }
+            if (held != null) {
+                server.releaseToken(held);
+            }
+        }
+        // Closed before the first message
+        String ht = handshakeToken;
+        if (ht != null) {
+            handshakeToken = null;
+            server.getMmsiBroker().release(ht);
+            server.getAuthenticator().revoke(ht);
         }
         super.onWebSocketClose(reason);
     }
 
-    public void enqueuePacket(AisPacket packet) {
-        if (queueReader != null) {
-            try {
-                queueReader.getQueue().push(packet);
-            } catch (MessageQueueOverflowException e) {
-                overflowLogger.log("Write queue is full");
-                if (overflowStart == 0) {
-                    overflowStart = System.currentTimeMillis();
-                }
-                if (System.currentTimeMillis() - overflowStart > OVERFLOW_TIMEOUT) {
-                    close();
-                }
+    /**
+     * Tell the session that a frame has been published to the ring. The frame is shared between all clients and must
+     * not be altered. Unless conflating, a client not keeping up with the ring is disconnected. A conflating client is
+     * disconnected when all its writes are in flight and none has completed for a while. Priority frames are also
+     * handed to the session directly. If there is no room for them, they are sent when read from the ring.
+     * 
+     * @param frame
+     */
+    public void enqueuePacket(PacketFrame frame) {
+        if (!open || frame.getSequence() == lastSignalled) {
+            return;
+        }
+        metrics.enqueued();
+        if (frame.isPriority() && !priorityFrames.offer(frame)) {
+            overflowLogger.log("Priority queue is full, sending from the ring");
+        }
+        if (frame.getSequence() - cursor >= ring.getCapacity()) {
+            // The producer has lapped the cursor and overwritten unsent frames
+            overflowLogger.log("Write queue is full");
+            if (overflowStart == 0) {
+                overflowStart = System.currentTimeMillis();
+            }
+            if (!server.isConflate() && System.currentTimeMillis() - overflowStart > OVERFLOW_TIMEOUT) {
+                close();
                 return;
             }
+        } else {
             overflowStart = 0;
         }
+        if (server.isConflate() && inFlight.get() >= server.getMaxInFlightWrites()
+                && System.currentTimeMillis() - lastProgress > OVERFLOW_TIMEOUT) {
+            // Conflating does not help a client that stopped reading
+            overflowLogger.log("Client stopped reading");
+            close();
+            return;
+        }
+        lastSignalled = frame.getSequence();
+        signal();
     }
 
-    @Override
-    public void receive(AisPacket packet) {
-        sendPacket(packet);
+    /**
+     * Tell the session that a frame it does not accept has been published. The session is signalled now and then
+     * anyway, so the cursor keeps up with the ring while nothing is sent.
+     * 
+     * @param frame
+     */
+    public void skipPacket(PacketFrame frame) {
+        if (open && frame.getSequence() - lastSignalled >= ring.getCapacity() / 2) {
+            lastSignalled = frame.getSequence();
+            signal();
+        }
+    }
+
+    /**
+     * Determine if the client wants the frame. Frames from the client's own MMSI or addressed to it are always
+     * accepted. Otherwise subscribing clients only get frames positioned within their area.
+     * 
+     * @param frame
+     * @return
+     */
+    public boolean accepts(PacketFrame frame) {
+        if (!subscribed) {
+            return true;
+        }
+        int mmsi = ownMmsi;
+        if (frame.getMmsi() == mmsi || frame.isAddressedTo(mmsi)) {
+            return true;
+        }
+        ReceiveArea a = area;
+        return a != null && frame.hasPosition() && a.contains(frame.getLat(), frame.getLon());
+    }
+
+    /**
+     * Make sure the drain task runs after this call
+     */
+    private void signal() {
+        if (wip.getAndIncrement() == 0) {
+            server.getDispatcher().execute(drainTask);
+        }
+    }
+
+    /**
+     * Start writes until the in-flight limit is reached or there is nothing more to send. Write completions signal
+     * the session again.
+     */
+    private void drain() {
+        if (!open) {
+            return;
+        }
+        if (!authenticated) {
+            // Nothing is sent before authentication
+            cursor = ring.getHead();
+            priorityFrames.clear();
+            replay.clear();
+            return;
+        }
+        long from = replay.takeReplay();
+        if (from >= 0) {
+            startReplay(from);
+        }
+        // Catch up before the producer laps the cursor, also while all writes are in flight
+        if (server.isConflate() && ring.getHead() - cursor >= ring.getCapacity() / 2) {
+            conflate();
+        }
+        while (inFlight.get() < server.getMaxInFlightWrites()) {
+            Write write = nextWrite();
+            if (write == null) {
+                return;
+            }
+            if (inFlight.get() == 0) {
+                lastProgress = System.currentTimeMillis();
+            }
+            inFlight.incrementAndGet();
+            if (!write.send()) {
+                inFlight.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the next write or null if nothing is ready
+     * 
+     * @return
+     */
+    private Write nextWrite() {
+        if (subscriptionConfirmation.get() != null) {
+            // Frames read for the previous area go first
+            if (!batch.isEmpty()) {
+                return flushBatch();
+            }
+            return new Write(subscriptionConfirmation.getAndSet(null), new long[0]);
+        }
+        if (!batching) {
+            PacketFrame frame = nextFrame(true);
+            return frame == null ? null : createWrite(frame);
+        }
+        int batchSize = server.getBatchSize();
+        PacketFrame frame;
+        // The last frame of a resumable batch is read from the ring, so the cursor moves and the sequence number
+        // sent with the batch acknowledges the priority frames in it
+        while (batch.size() < batchSize && (frame = nextFrame(!resumable || batch.size() < batchSize - 1)) != null) {
+            if (batch.isEmpty()) {
+                batchStart = System.nanoTime();
+            }
+            batch.add(frame);
+            batchUrgent |= frame.isPriority();
+        }
+        if (batch.isEmpty()) {
+            return null;
+        }
+        // Wait for the batch to fill until the window closes
+        long wait = batchStart + TimeUnit.MILLISECONDS.toNanos(server.getBatchWindow()) - System.nanoTime();
+        if (batch.size() < batchSize && wait > 0 && !batchUrgent) {
+            if (flushScheduled.compareAndSet(false, true)) {
+                server.getDispatcher().schedule(flushTask, wait, TimeUnit.NANOSECONDS);
+            }
+            return null;
+        }
+        return flushBatch();
+    }
+
+    private Write flushBatch() {
+        Write write = batch.size() == 1 && nextSequence() == null ? createWrite(batch.get(0)) : createBatchWrite();
+        batch.clear();
+        batchUrgent = false;
+        return write;
+    }
+
+    private Write createWrite(PacketFrame frame) {
+        long[] ingestTimes = { frame.getIngestTime() };
+        if (binary) {
+            // The record is shared, each write gets its own view of it
+            return new Write(ByteBuffer.wrap(frame.getRecord()), ingestTimes);
+        }
+        return new Write(frame.getText(), ingestTimes);
+    }
+
+    private Write createBatchWrite() {
+        long[] ingestTimes = new long[batch.size()];
+        for (int i = 0; i < ingestTimes.length; i++) {
+            ingestTimes[i] = batch.get(i).getIngestTime();
+        }
+        Long sequence = nextSequence();
+        if (sequence != null) {
+            sequenceSent = sequence;
+            replay.acknowledge(sequence);
+        }
+        if (binary) {
+            // Binary frames are just the records one after the other, with the sequence number last
+            byte[] sequenceRecord = sequence != null ? BinaryFrameCodec.encodeSequence(sequence) : null;
+            int length = sequenceRecord != null ? sequenceRecord.length : 0;
+            for (PacketFrame frame : batch) {
+                length += frame.getRecord().length;
+            }
+            ByteBuffer data = ByteBuffer.allocate(length);
+            for (PacketFrame frame : batch) {
+                data.put(frame.getRecord());
+            }
+            if (sequenceRecord != null) {
+                data.put(sequenceRecord);
+            }
+            data.flip();
+            return new Write(data, ingestTimes);
+        }
+        for (PacketFrame frame : batch) {
+            batchTexts.add(frame.getText());
+        }
+        String text = encodeBatch(batchTexts, sequence);
+        batchTexts.clear();
+        return new Write(text, ingestTimes);
+    }
+
+    /**
+     * Get the sequence number to send with the next batch. Everything accepted before the cursor has then been sent,
+     * except while catching up, when the cursor is ahead of frames still pending.
+     * 
+     * @return the sequence number or null if the client has it already or does not want it
+     */
+    private Long nextSequence() {
+        if (!resumable || conflation.isActive() || cursor == sequenceSent) {
+            return null;
+        }
+        return cursor;
+    }
+
+    /**
+     * Determine if a frame read from the ring is to be sent. Priority frames already sent ahead of the cursor are
+     * skipped.
+     * 
+     * @param frame
+     * @return
+     */
+    private boolean wanted(PacketFrame frame) {
+        return !(frame.isPriority() && replay.pass(frame.getSequence())) && accepts(frame);
+    }
+
+    /**
+     * Get the next priority frame if priority is true, or read the next accepted frame and advance the cursor past it.
+     * Frames overwritten before they were read are skipped.
+     * 
+     * @param priority
+     * @return the frame or null if the cursor has reached the head of the ring
+     */
+    private PacketFrame nextFrame(boolean priority) {
+        PacketFrame priorityFrame;
+        while (priority && (priorityFrame = priorityFrames.poll()) != null) {
+            // Frames the cursor has passed were sent from the ring, before they were handed to the session
+            if (priorityFrame.getSequence() >= cursor) {
+                replay.sentAhead(priorityFrame.getSequence());
+                return priorityFrame;
+            }
+        }
+        if (conflation.isActive()) {
+            PacketFrame frame = conflation.poll();
+            if (frame != null) {
+                return frame;
+            }
+        }
+        long seq = cursor;
+        while (seq < ring.getHead()) {
+            PacketFrame frame = ring.get(seq);
+            if (frame == null) {
+                // Lapped, continue from the oldest frame still in the ring
+                long tail = Math.max(seq + 1, ring.getTail());
+                metrics.dropped(tail - seq);
+                seq = tail;
+                continue;
+            }
+            seq++;
+            if (wanted(frame)) {
+                cursor = seq;
+                return frame;
+            }
+        }
+        cursor = seq;
+        // Replay only while the live stream is idle
+        return backfill.isActive() ? nextBackfillFrame() : null;
+    }
+
+    /**
+     * Read all accepted frames from the cursor to the head of the ring into the conflation buffer
+     */
+    private void conflate() {
+        if (conflation.start()) {
+            overflowLogger.log("Client falling behind, conflating position reports");
+        }
+        long head = ring.getHead();
+        long seq = cursor;
+        while (seq < head) {
+            PacketFrame frame = ring.get(seq);
+            if (frame == null) {
+                long tail = Math.max(seq + 1, ring.getTail());
+                metrics.dropped(tail - seq);
+                seq = tail;
+                continue;
+            }
+            seq++;
+            if (wanted(frame)) {
+                conflation.add(frame);
+            }
+        }
+        cursor = seq;
+    }
+
+    /**
+     * Get the next replayed frame if the backfill rate allows
+     * 
+     * @return the frame or null if nothing may be replayed now
+     */
+    private PacketFrame nextBackfillFrame() {
+        PacketFrame frame = backfill.next(System.nanoTime());
+        long wait = backfill.getWait();
+        if (frame == null && wait > 0 && backfill.isActive() && flushScheduled.compareAndSet(false, true)) {
+            server.getDispatcher().schedule(flushTask, wait, TimeUnit.NANOSECONDS);
+        }
+        return frame;
+    }
+
+    private void queueBackfill(LastPackets entry, Queue<PacketFrame> frames) {
+        Position position = server.getTargetTable().getPosition(entry.getMmsi());
+        // Skip targets outside the area without parsing their packets
+        if (subscribed && entry.getMmsi() != ownMmsi) {
+            ReceiveArea a = area;
+            if (a == null || position == null || !a.contains(position.getLatitude(), position.getLongitude())) {
+                return;
+            }
+        }
+        queueBackfill(entry.getPosition(), position, frames);
+        queueBackfill(entry.getStaticReport(), position, frames);
+        queueBackfill(entry.getStaticPartB(), position, frames);
+    }
+
+    private void queueBackfill(String packet, Position position, Queue<PacketFrame> frames) {
+        if (packet == null) {
+            return;
+        }
+        PacketFrame frame = new PacketFrame(AisPacket.from(packet), -1, position, false, false);
+        if (accepts(frame)) {
+            frames.add(frame);
+        }
+    }
+
+    /**
+     * Move the cursor back to send what the client missed while disconnected, or give it the current picture if the
+     * frames have been overwritten meanwhile
+     * 
+     * @param from
+     *            sequence number the client resumes from
+     */
+    private void startReplay(long from) {
+        long head = ring.getHead();
+        if (from < ring.getTail()) {
+            LOG.info("Frames to replay overwritten");
+            if (server.getBackfillRate() > 0) {
+                startBackfill();
+            }
+            return;
+        }
+        LOG.info("Replaying " + (head - from) + " frames");
+        // Priority frames queued since authentication are in the replay
+        priorityFrames.clear();
+        // Except those the client received from the dropped session
+        replay.replaying(from);
+        cursor = from;
+    }
+
+    /**
+     * Start replaying the last packets of the targets
+     */
+    private void startBackfill() {
+        backfill.start(server.getTargetTable().lastPackets(), subscribed && area == null);
+        signal();
     }
 
     @Override
@@ -113,21 +822,119 @@ public class WebSocketServerSession extends WebSocketSession implements IQueueEn
         super.sendPacket(packet);
     }
 
+    /**
+     * Get the current outbound metrics of the session
+     * 
+     * @return
+     */
+    public ClientMetricsMessage getMetrics() {
+        ClientMetricsMessage message = new ClientMetricsMessage();
+        message.setMmsi(ownMmsi);
+        message.setRingLag(Math.max(0, ring.getHead() - cursor));
+        message.setPending(priorityFrames.size() + conflation.size());
+        message.setInFlight(inFlight.get());
+        metrics.fill(message);
+        return message;
+    }
+
+    public int getOwnMmsi() {
+        return ownMmsi;
+    }
+
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    public ReceiveArea getArea() {
+        return area;
+    }
+
     @Override
     protected void handleMessage(WsMessage wsMessage) {
-        // Maybe message a token
-        if (wsMessage.getAuthToken() != null) {
-            authToken = wsMessage.getAuthToken();
-            authenticated = server.checkToken(wsMessage.getAuthToken());
+        boolean backfillNow = false;
+        // Maybe message a token, the first message uses the token from the handshake
+        String messageToken = wsMessage.getAuthToken();
+        String ht = handshakeToken;
+        boolean resumed = false;
+        if (ht != null) {
+            handshakeToken = null;
+            if (messageToken == null) {
+                messageToken = ht;
+                resumed = handshakeResumed;
+            } else if (!messageToken.equals(ht)) {
+                replay.cancelReplay();
+                server.getMmsiBroker().release(ht);
+                server.getAuthenticator().revoke(ht);
+            }
+        }
+        if (messageToken != null) {
+            // A replay takes the place of the current picture
+            boolean replaying = replay.isReplayRequested();
+            authToken = messageToken;
+            Integer mmsi = server.getMmsiBroker().getMmsi(authToken);
+            ownMmsi = mmsi == null ? -1 : mmsi;
+            // Binary frames hold any number of packets, clients announcing neither get one message per frame
+            binary = server.isBinaryFraming() && wsMessage.hasCapability(WsMessage.CAPABILITY_BINARY);
+            batching = server.getBatchSize() > 1 && (binary || wsMessage.hasCapability(WsMessage.CAPABILITY_BATCH));
+            confirmingSubscriptions = wsMessage.hasCapability(WsMessage.CAPABILITY_FILTER);
+            // Sequence numbers are sent with batches
+            resumable = batching && wsMessage.hasCapability(WsMessage.CAPABILITY_RESUME);
+            String held = heldToken;
+            if (held != null) {
+                heldToken = null;
+                server.releaseToken(held);
+            }
+            if (resumed) {
+                // Held and activated by the dropped session
+                heldToken = authToken;
+                authenticated = true;
+            } else {
+                authenticated = server.holdToken(authToken);
+                if (authenticated) {
+                    heldToken = authToken;
+                }
+            }
             LOG.info("Authentication result: " + authenticated);
             // Maybe activate MMSI reservation
             if (authenticated) {
-                if (!server.getMmsiBroker().activate(wsMessage.getAuthToken())) {
+                if (!resumed && !server.getMmsiBroker().activate(authToken)) {
                     LOG.error("Failed to activate MMSI reservation");
                     close();
                     return;
                 }
+                server.getClientGrid().update(this);
+                // Give the client the current picture, within the area if one comes with the token
+                backfillNow = !replaying && server.getBackfillRate() > 0;
+            }
+        }
+        // Maybe set or move subscription
+        if (wsMessage.getSubscription() != null) {
+            if (!authenticated) {
+                LOG.error("Client subscribing without authentication");
+                close();
+                return;
+            }
+            if (!ReceiveArea.isValid(wsMessage.getSubscription())) {
+                LOG.error("Client sending invalid subscription");
+                close(new CloseReason(CloseReason.CloseCodes.PROTOCOL_ERROR, "Invalid subscription"));
+                return;
             }
+            area = ReceiveArea.create(wsMessage.getSubscription());
+            subscribed = true;
+            LOG.debug("Subscription area: " + (area == null ? "none" : area.getCenter() + " " + area.getRadius()));
+            server.getClientGrid().update(this);
+            if (backfill.isAwaitingArea() && area != null) {
+                backfillNow = true;
+            }
+            if (confirmingSubscriptions) {
+                WsMessage confirmation = new WsMessage();
+                confirmation.setSubscription(wsMessage.getSubscription());
+                subscriptionConfirmation.set(encode(confirmation));
+                signal();
+            }
+        }
+        if (backfillNow) {
+            startBackfill();
         }
         String strPacket = wsMessage.getPacket();
         if (strPacket == null) {
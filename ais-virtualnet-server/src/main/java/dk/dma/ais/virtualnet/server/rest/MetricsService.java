@@ -0,0 +1,56 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server.rest;
+
+import static java.util.Objects.requireNonNull;
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.MediaType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.ais.virtualnet.common.message.MetricsMessage;
+import dk.dma.ais.virtualnet.server.AisVirtualNetServer;
+
+/**
+ * JAX-RS service exposing the outbound metrics of the client sessions. The metrics name the MMSI of the clients, so
+ * they require the same credentials as the target table.
+ */
+@Path("/metrics")
+public class MetricsService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetricsService.class);
+
+    private final AisVirtualNetServer server;
+
+    public MetricsService(AisVirtualNetServer server) {
+        this.server = requireNonNull(server);
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public MetricsMessage metrics(@QueryParam("username") String username, @QueryParam("password") String password) {
+        if (server.getAuthenticator().authenticate(username, password) == null) {
+            LOG.error("Failed to authenticate user for metrics: " + username);
+            return new MetricsMessage();
+        }
+        return server.getMetrics();
+    }
+
+}
@@ -16,11 +16,18 @@ package dk.dma.ais.virtualnet.server.rest;
 
 import static java.util.Objects.requireNonNull;
 
+import java.util.Locale;
+
 import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
 import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -31,6 +38,7 @@ import dk.dma.ais.virtualnet.common.message.ReserveMmsiReplyMessage.ReserveResul
 import dk.dma.ais.virtualnet.common.message.StatusMessage;
 import dk.dma.ais.virtualnet.common.message.TargetTableMessage;
 import dk.dma.ais.virtualnet.server.AisVirtualNetServer;
+import dk.dma.ais.virtualnet.server.CachedTargetTable;
 
 /**
  * JAX-RS rest services
@@ -57,14 +65,91 @@ public class RestService {
     @GET
     @Path("target_table")
     @Produces(MediaType.APPLICATION_JSON)
-    public TargetTableMessage getTargetTable(@QueryParam("username") String username,
-            @QueryParam("password") String password) {
-        LOG.info("Getting target table for user: " + username + " password: " + password);
+    public Response getTargetTable(@QueryParam("username") String username,
+            @QueryParam("password") String password, @QueryParam("since") Long since,
+            @HeaderParam(HttpHeaders.IF_NONE_MATCH) String ifNoneMatch,
+            @HeaderParam(HttpHeaders.ACCEPT_ENCODING) String acceptEncoding) {
+        LOG.info("Getting target table for user: " + username + " password: " + password + " since: " + since);
         if (server.getAuthenticator().authenticate(username, password) == null) {
             LOG.error("\tFailed to authenticate user");
-            return new TargetTableMessage();
+            return Response.ok(new TargetTableMessage()).build();
+        }
+        if (since != null) {
+            return Response.ok(server.getTargetTable().getChangedTargetTableMessage(since)).build();
+        }
+        // The full table is shared by all clients
+        CachedTargetTable.Payload payload = server.getCachedTargetTable().get();
+        boolean gzip = acceptsGzip(acceptEncoding);
+        EntityTag etag = new EntityTag(payload.getETag(gzip));
+        if (matches(ifNoneMatch, etag)) {
+            return Response.notModified(etag).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).build();
+        }
+        ResponseBuilder response = Response.ok(gzip ? payload.getGzip() : payload.getJson()).tag(etag)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        return response.build();
+    }
+
+    /**
+     * Determine if the client accepts gzip, with a quality above zero given for gzip or else for any encoding
+     * 
+     * @param acceptEncoding
+     *            Accept-Encoding header
+     * @return
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        double gzip = -1;
+        double any = -1;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] params = coding.split(";");
+            String name = params[0].trim().toLowerCase(Locale.ROOT);
+            double q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim().toLowerCase(Locale.ROOT);
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals("gzip") || name.equals("x-gzip")) {
+                gzip = q;
+            } else if (name.equals("*")) {
+                any = q;
+            }
+        }
+        return gzip >= 0 ? gzip > 0 : any > 0;
+    }
+
+    /**
+     * Determine if the entity tag is in an If-None-Match header, using the weak comparison
+     * 
+     * @param ifNoneMatch
+     * @param etag
+     * @return
+     */
+    static boolean matches(String ifNoneMatch, EntityTag etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        String quoted = '"' + etag.getValue() + '"';
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(quoted)) {
+                return true;
+            }
         }
-        return server.getTargetTable().getAliveTargetTableMessage();
+        return false;
     }
 
     @GET
@@ -108,6 +193,8 @@ public class RestService {
         if (!server.getAuthenticator().validate(authToken)) {
             result = ReserveResult.NOT_AUTHENTICATED;
         } else {
+            // A restarted transponder does not wait for its dropped session to time out
+            server.releaseParkedToken(server.getAuthenticator().getUsername(authToken), mmsi);
             result = server.getMmsiBroker().reserve(mmsi, authToken);
         }
         LOG.info("\tReserve result: " + result);
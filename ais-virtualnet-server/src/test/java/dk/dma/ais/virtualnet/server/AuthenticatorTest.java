@@ -0,0 +1,226 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.virtualnet.common.message.MetricsMessage;
+import dk.dma.ais.virtualnet.common.security.Password;
+
+public class AuthenticatorTest {
+
+    private static Authenticator authenticator() throws IOException {
+        return new Authenticator(users());
+    }
+
+    private static String users() throws IOException {
+        File users = File.createTempFile("users", ".txt");
+        users.deleteOnExit();
+        Files.write(users.toPath(), "# Users\nuser:secret\n".getBytes(StandardCharsets.UTF_8));
+        return users.getPath();
+    }
+
+    @Test
+    public void verifiedOnce() throws IOException {
+        Authenticator authenticator = authenticator();
+        String hashed = Password.hashPassword("secret");
+        Assert.assertNotNull(authenticator.authenticate("user", hashed));
+        Assert.assertNotNull(authenticator.authenticate("user", hashed));
+        Assert.assertEquals(1, authenticator.getPasswordChecks());
+
+        // Another hash of the same password is checked again
+        Assert.assertNotNull(authenticator.authenticate("user", Password.hashPassword("secret")));
+        Assert.assertEquals(2, authenticator.getPasswordChecks());
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() throws IOException {
+        Authenticator authenticator = new Authenticator(users(), 300000, 2, Clock.systemUTC());
+        String first = Password.hashPassword("secret");
+        String second = Password.hashPassword("secret");
+        String third = Password.hashPassword("secret");
+        Assert.assertNotNull(authenticator.authenticate("user", first));
+        Assert.assertNotNull(authenticator.authenticate("user", second));
+        Assert.assertNotNull(authenticator.authenticate("user", first));
+        Assert.assertEquals(2, authenticator.getPasswordChecks());
+
+        // Evicts the second, the first is still cached
+        Assert.assertNotNull(authenticator.authenticate("user", third));
+        Assert.assertNotNull(authenticator.authenticate("user", first));
+        Assert.assertNotNull(authenticator.authenticate("user", third));
+        Assert.assertEquals(3, authenticator.getPasswordChecks());
+        Assert.assertNotNull(authenticator.authenticate("user", second));
+        Assert.assertEquals(4, authenticator.getPasswordChecks());
+    }
+
+    @Test
+    public void failuresNotCached() throws IOException {
+        Authenticator authenticator = authenticator();
+        String hashed = Password.hashPassword("wrong");
+        Assert.assertNull(authenticator.authenticate("user", hashed));
+        Assert.assertNull(authenticator.authenticate("user", hashed));
+        Assert.assertEquals(2, authenticator.getPasswordChecks());
+        Assert.assertNull(authenticator.authenticate("other", hashed));
+        Assert.assertNull(authenticator.authenticate("user", null));
+        Assert.assertEquals(2, authenticator.getPasswordChecks());
+    }
+
+    @Test
+    public void username() throws IOException {
+        Authenticator authenticator = authenticator();
+        String token = authenticator.authenticate("user", Password.hashPassword("secret"));
+        Assert.assertEquals("user", authenticator.getUsername(token));
+        Assert.assertNull(authenticator.getUsername("unknown"));
+        Assert.assertNull(authenticator.getUsername(null));
+        authenticator.revoke(token);
+        Assert.assertNull(authenticator.getUsername(token));
+    }
+
+    @Test
+    public void concurrentReconnects() throws Exception {
+        final Authenticator authenticator = authenticator();
+        final String hashed = Password.hashPassword("secret");
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws InterruptedException {
+                        start.await();
+                        return authenticator.authenticate("user", hashed);
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<String> result : results) {
+                Assert.assertNotNull(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        // All requests waited for the same check
+        Assert.assertEquals(1, authenticator.getPasswordChecks());
+    }
+
+    @Test
+    public void tokenExpiry() throws Exception {
+        TestClock clock = new TestClock();
+        Authenticator authenticator = new Authenticator(users(), 100, clock);
+        String hashed = Password.hashPassword("secret");
+        String first = authenticator.authenticate("user", hashed);
+        String second = authenticator.authenticate("user", hashed);
+        Assert.assertTrue(authenticator.validate(first));
+        Assert.assertFalse(authenticator.validate("unknown"));
+        Assert.assertFalse(authenticator.validate(null));
+        Assert.assertEquals(2, authenticator.getTokenCount());
+
+        clock.advance(99);
+        Assert.assertTrue(authenticator.validate(second));
+        Assert.assertEquals(2, authenticator.getTokenCount());
+        clock.advance(1);
+        Assert.assertFalse(authenticator.validate(second));
+        Assert.assertEquals(0, authenticator.getTokenCount());
+        MetricsMessage metrics = new MetricsMessage();
+        authenticator.fill(metrics);
+        Assert.assertEquals(0, metrics.getTokens());
+        Assert.assertEquals(2, metrics.getTokensExpired());
+        Assert.assertEquals(1, metrics.getTokenSweeps());
+    }
+
+    @Test
+    public void heldTokenRenewed() throws Exception {
+        TestClock clock = new TestClock();
+        Authenticator authenticator = new Authenticator(users(), 100, clock);
+        String token = authenticator.authenticate("user", Password.hashPassword("secret"));
+        Assert.assertTrue(authenticator.hold(token));
+
+        // Held past several expiry times
+        for (int i = 0; i < 5; i++) {
+            clock.advance(60);
+            Assert.assertTrue(authenticator.validate(token));
+        }
+
+        // Expires the time to live after being released
+        authenticator.release(token);
+        clock.advance(99);
+        Assert.assertTrue(authenticator.validate(token));
+        clock.advance(1);
+        Assert.assertFalse(authenticator.validate(token));
+        Assert.assertFalse(authenticator.hold(token));
+    }
+
+    @Test
+    public void expiredTokenNotHeld() throws Exception {
+        TestClock clock = new TestClock();
+        Authenticator authenticator = new Authenticator(users(), 100, clock);
+        String token = authenticator.authenticate("user", Password.hashPassword("secret"));
+
+        // Expired but not yet swept
+        clock.advance(100);
+        Assert.assertFalse(authenticator.hold(token));
+        Assert.assertEquals(0, authenticator.getTokenCount());
+    }
+
+    /**
+     * Clock that only moves when advanced
+     */
+    private static class TestClock extends Clock {
+        private volatile long millis = 1000000;
+
+        void advance(long delta) {
+            millis += delta;
+        }
+
+        @Override
+        public long millis() {
+            return millis;
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,94 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.message.AisTargetType;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.table.LastPackets;
+import dk.dma.ais.virtualnet.common.table.TargetTable;
+
+public class BackfillPumpTest {
+
+    private static final String[] POSITIONS = { "!BSVDM,1,1,,B,13@nhq@0000r2nvOkojr`Fw40<0o,0*74",
+            "!BSVDM,1,1,,A,13u=g<0P00PsOnPOl`@UhOw208Cu,0*16", "!BSVDM,1,1,,A,13@nhr@000PqaQLOpJJr30a605hH,0*18",
+            "!BSVDM,1,1,,A,13AF@B00000qdApOoJetQ0i228D9,0*1A", "!BSVDM,1,1,,B,13u04v3018PqtW:Od<PWM5s408DW,0*3F" };
+
+    private static final long START = TimeUnit.SECONDS.toNanos(100);
+
+    /**
+     * Pump replaying a number of frames for each target
+     */
+    private static BackfillPump pump(int rate, final int framesPerTarget) {
+        return new BackfillPump(rate) {
+            @Override
+            protected void queue(LastPackets entry, Queue<PacketFrame> frames) {
+                for (int i = 0; i < framesPerTarget; i++) {
+                    frames.add(new PacketFrame(AisPacket.from(entry.getPosition()), -1, null, false, false));
+                }
+            }
+        };
+    }
+
+    private static Iterator<LastPackets> targets() {
+        TargetTable table = new TargetTable(600, Collections.<AisTargetType, Integer> emptyMap(), true);
+        for (String position : POSITIONS) {
+            table.update(AisPacket.from(position));
+        }
+        return table.lastPackets();
+    }
+
+    @Test
+    public void rateLimited() {
+        BackfillPump pump = pump(100, 10);
+        Assert.assertFalse(pump.isActive());
+        Assert.assertNull(pump.next(START));
+        pump.start(targets(), false);
+        Assert.assertTrue(pump.isActive());
+
+        // A burst of a tenth of the rate, then one frame every 10 ms
+        for (int i = 0; i < 10; i++) {
+            Assert.assertNotNull(pump.next(START));
+        }
+        Assert.assertNull(pump.next(START));
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(10), pump.getWait());
+        Assert.assertNull(pump.next(START + TimeUnit.MILLISECONDS.toNanos(5)));
+        Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(5), pump.getWait());
+        Assert.assertNotNull(pump.next(START + TimeUnit.MILLISECONDS.toNanos(10)));
+        Assert.assertNull(pump.next(START + TimeUnit.MILLISECONDS.toNanos(10)));
+        Assert.assertTrue(pump.isActive());
+    }
+
+    @Test
+    public void doneWhenReplayed() {
+        BackfillPump pump = pump(100, 1);
+        pump.start(targets(), true);
+        Assert.assertTrue(pump.isAwaitingArea());
+        for (int i = 0; i < POSITIONS.length; i++) {
+            Assert.assertNotNull(pump.next(START));
+        }
+        Assert.assertNull(pump.next(START));
+        Assert.assertFalse(pump.isActive());
+        Assert.assertEquals(0, pump.getWait());
+    }
+
+}
@@ -0,0 +1,81 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.message.WsMessage;
+import dk.dma.ais.virtualnet.common.websocket.WebSocketSession;
+
+/**
+ * Cost of handing one packet to a number of clients. Compares encoding the message for every client with encoding
+ * it once into a shared {@link PacketFrame}. Run with main method, not part of the unit tests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({ "1", "50", "400" })
+    int clients;
+
+    AisPacket packet;
+
+    @Setup
+    public void setup() {
+        packet = AisPacket.from("$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n"
+                + "!BSVDM,1,1,,A,15MgK45P3@G?fl0E`JbR0OwT0@MS,0*4E");
+    }
+
+    @Benchmark
+    public void encodePerClient(Blackhole bh) {
+        for (int i = 0; i < clients; i++) {
+            bh.consume(WebSocketSession.encode(new WsMessage(packet)));
+        }
+    }
+
+    @Benchmark
+    public void encodeOnce(Blackhole bh) {
+        PacketFrame frame = new PacketFrame(packet, 0, null, false, false);
+        for (int i = 0; i < clients; i++) {
+            bh.consume(frame.getText());
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(BroadcastBenchmark.class.getSimpleName()).build()).run();
+    }
+
+}
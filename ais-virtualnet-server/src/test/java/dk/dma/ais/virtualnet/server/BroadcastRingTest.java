@@ -0,0 +1,75 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.message.AisMessage7;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.sentence.Vdm;
+
+public class BroadcastRingTest {
+
+    private static final AisPacket PACKET = AisPacket.from("$PGHP,1,2013,3,13,10,39,18,375,219,,2190047,1,4A*57\r\n"
+            + "!BSVDM,1,1,,A,15MgK45P3@G?fl0E`JbR0OwT0@MS,0*4E");
+
+    @Test
+    public void capacity() {
+        Assert.assertEquals(8, new BroadcastRing(8).getCapacity());
+        Assert.assertEquals(8, new BroadcastRing(5).getCapacity());
+        Assert.assertEquals(2, new BroadcastRing(0).getCapacity());
+    }
+
+    @Test
+    public void publishAndRead() {
+        BroadcastRing ring = new BroadcastRing(4);
+        Assert.assertNull(ring.get(0));
+        PacketFrame frame = ring.publish(PACKET, null, false);
+        Assert.assertEquals(0, frame.getSequence());
+        Assert.assertEquals(1, ring.getHead());
+        Assert.assertSame(frame, ring.get(0));
+        Assert.assertNull(ring.get(1));
+    }
+
+    @Test
+    public void lapped() {
+        BroadcastRing ring = new BroadcastRing(4);
+        for (int i = 0; i < 6; i++) {
+            ring.publish(PACKET, null, false);
+        }
+        Assert.assertEquals(2, ring.getTail());
+        Assert.assertNull(ring.get(0));
+        Assert.assertNull(ring.get(1));
+        Assert.assertEquals(2, ring.get(2).getSequence());
+        Assert.assertEquals(5, ring.get(5).getSequence());
+    }
+
+    @Test
+    public void priority() throws Exception {
+        BroadcastRing ring = new BroadcastRing(4);
+        Assert.assertFalse(ring.publish(PACKET, null, false).isPriority());
+        Assert.assertTrue(ring.publish(PACKET, null, true).isPriority());
+        AisMessage7 ack = new AisMessage7();
+        ack.setUserId(992199999);
+        ack.setDest1(219001065);
+        AisPacket packet = AisPacket.from(Vdm.createSentences(ack, 0)[0]);
+        // Addressed to a target that is not a connected transponder
+        PacketFrame frame = ring.publish(packet, null, false);
+        Assert.assertFalse(frame.isPriority());
+        Assert.assertTrue(frame.isAddressedTo(219001065));
+    }
+
+}
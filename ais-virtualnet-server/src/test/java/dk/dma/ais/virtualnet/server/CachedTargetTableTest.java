@@ -0,0 +1,91 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.transform.stream.StreamSource;
+
+import org.eclipse.persistence.jaxb.JAXBContextFactory;
+import org.eclipse.persistence.jaxb.UnmarshallerProperties;
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.message.TargetTableMessage;
+import dk.dma.ais.virtualnet.common.table.TargetTable;
+
+public class CachedTargetTableTest {
+
+    private static final String POSITION = "!BSVDM,1,1,,A,13@nhr@000PqaQLOpJJr30a605hH,0*18";
+
+    @Test
+    public void cached() throws IOException, JAXBException {
+        TargetTable table = new TargetTable();
+        table.update(AisPacket.from(POSITION));
+        CachedTargetTable cached = new CachedTargetTable(table, 60000);
+        CachedTargetTable.Payload payload = cached.get();
+        Assert.assertEquals(table.getVersion(), payload.getVersion());
+
+        TargetTableMessage message = read(new ByteArrayInputStream(payload.getJson()));
+        Assert.assertEquals(1, message.getTargets().size());
+        Assert.assertEquals(table.getVersion(), message.getVersion());
+        message = read(new GZIPInputStream(new ByteArrayInputStream(payload.getGzip())));
+        Assert.assertEquals(1, message.getTargets().size());
+
+        // Changes are not seen until the payload gets too old
+        table.update(AisPacket.from(POSITION));
+        Assert.assertSame(payload, cached.get());
+    }
+
+    @Test
+    public void rebuild() {
+        TargetTable table = new TargetTable();
+        table.update(AisPacket.from(POSITION));
+        CachedTargetTable cached = new CachedTargetTable(table, 0);
+        CachedTargetTable.Payload payload = cached.get();
+        // Unchanged table reuses the serialized table
+        Assert.assertSame(payload.getJson(), cached.get().getJson());
+        table.update(AisPacket.from(POSITION));
+        Assert.assertEquals(table.getVersion(), cached.get().getVersion());
+        Assert.assertNotEquals(payload.getVersion(), cached.get().getVersion());
+    }
+
+    @Test
+    public void etag() {
+        TargetTable table = new TargetTable();
+        table.update(AisPacket.from(POSITION));
+        CachedTargetTable.Payload payload = new CachedTargetTable(table, 0).get();
+        Assert.assertNotEquals(payload.getETag(false), payload.getETag(true));
+        // Same version with targets expired since
+        CachedTargetTable.Payload expired = new CachedTargetTable.Payload(payload.getVersion(), 0, new byte[0],
+                new byte[0], 0);
+        Assert.assertNotEquals(payload.getETag(false), expired.getETag(false));
+    }
+
+    private static TargetTableMessage read(InputStream in) throws JAXBException {
+        Unmarshaller unmarshaller = JAXBContextFactory.createContext(new Class<?>[] { TargetTableMessage.class }, null)
+                .createUnmarshaller();
+        unmarshaller.setProperty(UnmarshallerProperties.MEDIA_TYPE, "application/json");
+        unmarshaller.setProperty(UnmarshallerProperties.JSON_INCLUDE_ROOT, false);
+        return unmarshaller.unmarshal(new StreamSource(in), TargetTableMessage.class).getValue();
+    }
+
+}
@@ -0,0 +1,53 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClientGridTest {
+
+    @Test
+    public void cells() {
+        // 75 km around Copenhagen spans 55-57 N and 11-14 E
+        int[] keys = ClientGrid.cellsOf(new ReceiveArea(55.7, 12.6, 75000));
+        Assert.assertEquals(2 * 3, keys.length);
+        Assert.assertEquals(keys.length, distinct(keys));
+    }
+
+    @Test
+    public void antimeridian() {
+        int[] keys = ClientGrid.cellsOf(new ReceiveArea(0.5, 179.95, 10000));
+        Assert.assertEquals(2, keys.length);
+        Assert.assertEquals(2, distinct(keys));
+    }
+
+    @Test
+    public void tooLarge() {
+        Assert.assertNull(ClientGrid.cellsOf(new ReceiveArea(55.7, 12.6, 2000000)));
+    }
+
+    private static int distinct(int[] keys) {
+        Set<Integer> set = new HashSet<>();
+        for (int key : keys) {
+            set.add(key);
+        }
+        return set.size();
+    }
+
+}
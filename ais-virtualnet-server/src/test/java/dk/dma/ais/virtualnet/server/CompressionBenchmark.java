@@ -0,0 +1,270 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.websocket.WebSocketSession;
+
+/**
+ * Bandwidth and CPU trade-off of permessage-deflate on the frames sent to a transponder. Frames are made from the
+ * sample traffic in ais.txt.gz the way {@link WebSocketServerSession} makes them, and deflated and inflated the way
+ * Jetty does, per message with a sync flush, and with the dictionary reset between messages if context takeover is
+ * off. The server deflates separately for every client.
+ * <p>
+ * Messages per frame models the traffic rate: a quiet subscription gets one packet per frame, a busy one fills the
+ * batches. The main method prints the bytes saved and the share of one core spent per client at typical rates. Run
+ * with main method, not part of the unit tests.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+    /**
+     * Messages per second to and from a single transponder to report the CPU cost at
+     */
+    private static final int[] RATES = { 100, 1000, 5000 };
+
+    private static final byte[] TAIL = { 0x00, 0x00, (byte) 0xff, (byte) 0xff };
+
+    @Param({ "text", "binary" })
+    String framing;
+
+    @Param({ "true", "false" })
+    boolean contextTakeover;
+
+    @Param({ "1", "10" })
+    int batch;
+
+    List<byte[]> frames;
+
+    List<byte[]> compressedFrames;
+
+    Deflater deflater;
+
+    Inflater inflater;
+
+    byte[] buffer = new byte[64 * 1024];
+
+    int next;
+
+    int nextCompressed;
+
+    @Setup
+    public void setup() throws IOException {
+        frames = frames(framing, batch);
+        compressedFrames = new ArrayList<>();
+        Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        for (byte[] frame : frames) {
+            compressedFrames.add(deflate(d, frame, contextTakeover, buffer));
+        }
+        d.end();
+        deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        inflater = new Inflater(true);
+    }
+
+    @Benchmark
+    public int deflate() {
+        byte[] frame = frames.get(next);
+        next = (next + 1) % frames.size();
+        return deflate(deflater, frame, contextTakeover, buffer).length;
+    }
+
+    @Benchmark
+    public int inflate() throws DataFormatException {
+        byte[] frame = compressedFrames.get(nextCompressed);
+        nextCompressed = (nextCompressed + 1) % compressedFrames.size();
+        return inflate(inflater, frame, contextTakeover, buffer);
+    }
+
+    static byte[] deflate(Deflater deflater, byte[] frame, boolean contextTakeover, byte[] buffer) {
+        deflater.setInput(frame);
+        int length = 0;
+        int n;
+        do {
+            n = deflater.deflate(buffer, length, buffer.length - length, Deflater.SYNC_FLUSH);
+            length += n;
+        } while (n > 0 && length < buffer.length);
+        if (!contextTakeover) {
+            deflater.reset();
+        }
+        // The empty block ending the flush is not sent
+        byte[] compressed = new byte[length - TAIL.length];
+        System.arraycopy(buffer, 0, compressed, 0, compressed.length);
+        return compressed;
+    }
+
+    static int inflate(Inflater inflater, byte[] compressed, boolean contextTakeover, byte[] buffer)
+            throws DataFormatException {
+        byte[] input = new byte[compressed.length + TAIL.length];
+        System.arraycopy(compressed, 0, input, 0, compressed.length);
+        System.arraycopy(TAIL, 0, input, compressed.length, TAIL.length);
+        inflater.setInput(input);
+        int length = 0;
+        int n;
+        do {
+            n = inflater.inflate(buffer, length, buffer.length - length);
+            length += n;
+        } while (n > 0 && length < buffer.length);
+        if (!contextTakeover) {
+            inflater.reset();
+        }
+        return length;
+    }
+
+    /**
+     * Frames of the sample traffic as sent to a transponder
+     */
+    static List<byte[]> frames(String framing, int batch) throws IOException {
+        List<PacketFrame> packets = new ArrayList<>();
+        for (AisPacket packet : samplePackets()) {
+            packets.add(new PacketFrame(packet, packets.size(), null, false, false));
+        }
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i + batch <= packets.size(); i += batch) {
+            List<PacketFrame> group = packets.subList(i, i + batch);
+            if (framing.equals("binary")) {
+                int length = 0;
+                for (PacketFrame frame : group) {
+                    length += frame.getRecord().length;
+                }
+                ByteBuffer data = ByteBuffer.allocate(length);
+                for (PacketFrame frame : group) {
+                    data.put(frame.getRecord());
+                }
+                frames.add(data.array());
+            } else if (batch == 1) {
+                frames.add(group.get(0).getText().getBytes(StandardCharsets.UTF_8));
+            } else {
+                List<String> texts = new ArrayList<>();
+                for (PacketFrame frame : group) {
+                    texts.add(frame.getText());
+                }
+                frames.add(WebSocketSession.encodeBatch(texts).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        return frames;
+    }
+
+    private static List<AisPacket> samplePackets() throws IOException {
+        List<AisPacket> packets = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(
+                CompressionBenchmark.class.getResourceAsStream("/ais.txt.gz")), StandardCharsets.US_ASCII))) {
+            StringBuilder lines = new StringBuilder();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // A packet is the proprietary sentence with the time followed by the VDM sentences
+                if (line.startsWith("$") && lines.length() > 0) {
+                    packets.add(AisPacket.from(lines.toString()));
+                    lines.setLength(0);
+                }
+                if (lines.length() > 0) {
+                    lines.append("\r\n");
+                }
+                lines.append(line);
+            }
+            if (lines.length() > 0) {
+                packets.add(AisPacket.from(lines.toString()));
+            }
+        }
+        return packets;
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        Collection<RunResult> results = new Runner(new OptionsBuilder().include(
+                CompressionBenchmark.class.getSimpleName()).build()).run();
+
+        System.out.println();
+        System.out.print(String.format("%-7s %-9s %5s %9s %9s %7s %10s %10s", "framing", "takeover", "batch",
+                "raw B/msg", "def B/msg", "saving", "def ns/msg", "inf ns/msg"));
+        for (int rate : RATES) {
+            System.out.print(String.format(" %12s", "cpu@" + rate + "/s"));
+        }
+        System.out.println();
+        for (String framing : new String[] { "text", "binary" }) {
+            for (boolean contextTakeover : new boolean[] { true, false }) {
+                for (int batch : new int[] { 1, 10 }) {
+                    List<byte[]> frames = frames(framing, batch);
+                    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                    byte[] buffer = new byte[64 * 1024];
+                    long raw = 0;
+                    long compressed = 0;
+                    for (byte[] frame : frames) {
+                        raw += frame.length;
+                        compressed += deflate(deflater, frame, contextTakeover, buffer).length;
+                    }
+                    deflater.end();
+                    long messages = (long) frames.size() * batch;
+                    double deflateNs = score(results, "deflate", framing, contextTakeover, batch) / batch;
+                    double inflateNs = score(results, "inflate", framing, contextTakeover, batch) / batch;
+                    System.out.print(String.format("%-7s %-9s %5d %9.1f %9.1f %6.1f%% %10.0f %10.0f", framing,
+                            contextTakeover, batch, (double) raw / messages, (double) compressed / messages,
+                            100.0 * (raw - compressed) / raw, deflateNs, inflateNs));
+                    for (int rate : RATES) {
+                        System.out.print(String.format(" %11.3f%%", 100.0 * deflateNs * rate / 1e9));
+                    }
+                    System.out.println();
+                }
+            }
+        }
+    }
+
+    private static double score(Collection<RunResult> results, String benchmark, String framing,
+            boolean contextTakeover, int batch) {
+        for (RunResult result : results) {
+            if (result.getParams().getBenchmark().endsWith("." + benchmark)
+                    && result.getParams().getParam("framing").equals(framing)
+                    && result.getParams().getParam("contextTakeover").equals(Boolean.toString(contextTakeover))
+                    && result.getParams().getParam("batch").equals(Integer.toString(batch))) {
+                return result.getPrimaryResult().getScore();
+            }
+        }
+        return Double.NaN;
+    }
+
+}
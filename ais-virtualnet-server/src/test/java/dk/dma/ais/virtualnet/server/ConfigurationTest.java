@@ -27,6 +27,7 @@ import dk.dma.ais.configuration.bus.provider.RepeatingFileReaderProviderConfigur
 import dk.dma.ais.configuration.filter.TaggingFilterConfiguration;
 import dk.dma.ais.configuration.transform.PacketTaggingConfiguration;
 import dk.dma.ais.configuration.transform.ReplayTransformConfiguration;
+import dk.dma.ais.message.AisTargetType;
 
 public class ConfigurationTest {
     
@@ -50,11 +51,16 @@ public class ConfigurationTest {
         tagFilterConf.setFilterTagging(tagConf);
         aisBusConf.getFilters().add(tagFilterConf);        
         
+        // Keep class B targets longer
+        conf.getTargetTypeTtls().add(new TargetTypeTtl(AisTargetType.B, 1080));
+        
         ServerConfiguration.save(filename, conf);
         
         conf = ServerConfiguration.load(filename);
         AisBus aisBus = conf.getAisbusConfiguration().getInstance();
         Assert.assertNotNull(aisBus);
+        Assert.assertEquals(AisTargetType.B, conf.getTargetTypeTtls().get(0).getTargetType());
+        Assert.assertEquals(1080, conf.getTargetTypeTtls().get(0).getTtl());
     }
 
 }
@@ -0,0 +1,79 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.message.ClientMetricsMessage;
+import dk.dma.ais.virtualnet.common.metrics.LatencyHistogram;
+
+public class ConflationBufferTest {
+
+    private static final String POSITION_A = "!BSVDM,1,1,,B,13@nhq@0000r2nvOkojr`Fw40<0o,0*74";
+
+    private static final String POSITION_B = "!BSVDM,1,1,,A,13u=g<0P00PsOnPOl`@UhOw208Cu,0*16";
+
+    private static final String DATA_LINK = "!BSVDM,1,1,,B,D02R3VQHHNfq6DO6D0,4*3E";
+
+    private static PacketFrame frame(String packet, long seq) {
+        return new PacketFrame(AisPacket.from(packet), seq, null, false, false);
+    }
+
+    @Test
+    public void latestPositionPerTarget() {
+        SessionMetrics metrics = new SessionMetrics(new LatencyHistogram());
+        ConflationBuffer buffer = new ConflationBuffer(8, metrics);
+        Assert.assertTrue(buffer.start());
+        Assert.assertFalse(buffer.start());
+        buffer.add(frame(POSITION_A, 0));
+        buffer.add(frame(POSITION_B, 1));
+        buffer.add(frame(POSITION_A, 2));
+        buffer.add(frame(DATA_LINK, 3));
+        Assert.assertEquals(3, buffer.size());
+
+        // Frames not superseded first, then the latest position of each target
+        Assert.assertEquals(3, buffer.poll().getSequence());
+        Assert.assertEquals(2, buffer.poll().getSequence());
+        Assert.assertEquals(1, buffer.poll().getSequence());
+        Assert.assertTrue(buffer.isActive());
+        Assert.assertNull(buffer.poll());
+        Assert.assertFalse(buffer.isActive());
+        Assert.assertEquals(0, buffer.size());
+
+        ClientMetricsMessage message = new ClientMetricsMessage();
+        metrics.fill(message);
+        Assert.assertEquals(1, message.getConflated());
+    }
+
+    @Test
+    public void oldestDroppedWhenFull() {
+        SessionMetrics metrics = new SessionMetrics(new LatencyHistogram());
+        ConflationBuffer buffer = new ConflationBuffer(2, metrics);
+        buffer.start();
+        for (int i = 0; i < 3; i++) {
+            buffer.add(frame(DATA_LINK, i));
+        }
+        Assert.assertEquals(1, buffer.poll().getSequence());
+        Assert.assertEquals(2, buffer.poll().getSequence());
+        Assert.assertNull(buffer.poll());
+
+        ClientMetricsMessage message = new ClientMetricsMessage();
+        metrics.fill(message);
+        Assert.assertEquals(1, message.getDropped());
+    }
+
+}
@@ -0,0 +1,64 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.virtualnet.common.message.Subscription;
+
+public class ReceiveAreaTest {
+
+    @Test
+    public void contains() {
+        ReceiveArea area = new ReceiveArea(55.7, 12.6, 75000);
+        Assert.assertTrue(area.contains(55.7, 12.6));
+        Assert.assertTrue(area.contains(56.3, 12.6));
+        Assert.assertFalse(area.contains(56.5, 12.6));
+        Assert.assertTrue(area.contains(55.7, 13.7));
+        Assert.assertFalse(area.contains(55.7, 14.0));
+        // Inside the bounding box but not the circle
+        Assert.assertFalse(area.contains(56.3, 13.6));
+    }
+
+    @Test
+    public void antimeridian() {
+        ReceiveArea area = new ReceiveArea(0, 179.9, 50000);
+        Assert.assertTrue(area.contains(0, -179.9));
+        Assert.assertFalse(area.contains(0, -179));
+    }
+
+    @Test
+    public void noPosition() {
+        Assert.assertNull(ReceiveArea.create(new Subscription(null, null, 1000)));
+        Assert.assertNotNull(ReceiveArea.create(new Subscription(55.0, 12.0, 1000)));
+    }
+
+    @Test
+    public void valid() {
+        Assert.assertTrue(ReceiveArea.isValid(new Subscription(55.0, 12.0, 75000)));
+        Assert.assertTrue(ReceiveArea.isValid(new Subscription(null, null, 75000)));
+        Assert.assertTrue(ReceiveArea.isValid(new Subscription(-90.0, 180.0, ReceiveArea.MAX_RADIUS)));
+        Assert.assertFalse(ReceiveArea.isValid(new Subscription(55.0, 12.0, 0)));
+        Assert.assertFalse(ReceiveArea.isValid(new Subscription(55.0, 12.0, -1)));
+        Assert.assertFalse(ReceiveArea.isValid(new Subscription(55.0, 12.0, Double.NaN)));
+        Assert.assertFalse(ReceiveArea.isValid(new Subscription(55.0, 12.0, ReceiveArea.MAX_RADIUS + 1)));
+        Assert.assertFalse(ReceiveArea.isValid(new Subscription(91.0, 12.0, 1000)));
+        Assert.assertFalse(ReceiveArea.isValid(new Subscription(55.0, -180.5, 1000)));
+        Assert.assertFalse(ReceiveArea.isValid(new Subscription(Double.NaN, 12.0, 1000)));
+        Assert.assertFalse(ReceiveArea.isValid(new Subscription(55.0, Double.POSITIVE_INFINITY, 1000)));
+    }
+
+}
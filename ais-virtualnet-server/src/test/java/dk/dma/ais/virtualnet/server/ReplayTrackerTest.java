@@ -0,0 +1,103 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.packet.AisPacket;
+
+public class ReplayTrackerTest {
+
+    private static final AisPacket PACKET = AisPacket.from("!BSVDM,1,1,,B,13@nhq@0000r2nvOkojr`Fw40<0o,0*74");
+
+    private static BroadcastRing ring(int frames) {
+        BroadcastRing ring = new BroadcastRing(8);
+        for (int i = 0; i < frames; i++) {
+            ring.publish(PACKET, null, false);
+        }
+        return ring;
+    }
+
+    @Test
+    public void sentAheadSkippedOnce() {
+        ReplayTracker tracker = new ReplayTracker(ring(6));
+        tracker.sentAhead(2);
+        tracker.sentAhead(4);
+        Assert.assertFalse(tracker.pass(1));
+        Assert.assertTrue(tracker.pass(2));
+        // Frame 3 was overwritten before it was sent ahead, 4 is still skipped
+        Assert.assertTrue(tracker.pass(4));
+        Assert.assertFalse(tracker.pass(4));
+    }
+
+    @Test
+    public void acknowledged() {
+        ReplayTracker tracker = new ReplayTracker(ring(6));
+        tracker.sentAhead(3);
+        // Not acknowledged until a sequence number is sent after it
+        Assert.assertArrayEquals(new long[0], tracker.getSentAhead());
+        tracker.acknowledge(1);
+        tracker.sentAhead(5);
+        Assert.assertTrue(tracker.pass(3));
+        tracker.acknowledge(4);
+        tracker.acknowledge(6);
+        Assert.assertArrayEquals(new long[] { 3, 1, 5, 4 }, tracker.getSentAhead());
+
+        tracker.clear();
+        Assert.assertArrayEquals(new long[0], tracker.getSentAhead());
+    }
+
+    @Test
+    public void passedUntilOverwritten() {
+        BroadcastRing ring = ring(6);
+        ReplayTracker tracker = new ReplayTracker(ring);
+        tracker.sentAhead(2);
+        tracker.acknowledge(1);
+        Assert.assertTrue(tracker.pass(2));
+        Assert.assertArrayEquals(new long[] { 2, 1 }, tracker.getSentAhead());
+        for (int i = 0; i < 5; i++) {
+            ring.publish(PACKET, null, false);
+        }
+        tracker.sentAhead(10);
+        Assert.assertTrue(tracker.pass(10));
+        Assert.assertArrayEquals(new long[0], tracker.getSentAhead());
+    }
+
+    @Test
+    public void receivedNotReplayed() {
+        ReplayTracker tracker = new ReplayTracker(ring(6));
+        Assert.assertFalse(tracker.isReplayRequested());
+        tracker.requestReplay(2, new long[] { 4 });
+        Assert.assertTrue(tracker.isReplayRequested());
+        Assert.assertEquals(2, tracker.takeReplay());
+        Assert.assertEquals(-1, tracker.takeReplay());
+        tracker.replaying(2);
+        Assert.assertFalse(tracker.pass(3));
+        Assert.assertTrue(tracker.pass(4));
+        Assert.assertFalse(tracker.pass(5));
+        // Still received when resuming again from the same sequence number
+        Assert.assertArrayEquals(new long[] { 4, 2 }, tracker.getSentAhead());
+    }
+
+    @Test
+    public void replayCancelled() {
+        ReplayTracker tracker = new ReplayTracker(ring(6));
+        tracker.requestReplay(2, null);
+        tracker.cancelReplay();
+        Assert.assertEquals(-1, tracker.takeReplay());
+    }
+
+}
@@ -0,0 +1,337 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
+import javax.websocket.Session;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import dk.dma.ais.configuration.bus.AisBusConfiguration;
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.message.WsMessage;
+import dk.dma.ais.virtualnet.common.security.Password;
+import dk.dma.ais.virtualnet.common.websocket.Handshake;
+import dk.dma.ais.virtualnet.common.websocket.WsMessageCodec;
+
+/**
+ * Outbound traffic of a session reading a server's ring, written to a fake remote endpoint
+ */
+public class WebSocketServerSessionTest {
+
+    /** Position reports of two other vessels */
+    private static final String BULK_A = "!BSVDM,1,1,,B,13@nhq@0000r2nvOkojr`Fw40<0o,0*74";
+    private static final String BULK_B = "!BSVDM,1,1,,A,13u=g<0P00PsOnPOl`@UhOw208Cu,0*16";
+
+    /** Position report of the client's own vessel */
+    private static final String OWN = "!BSVDM,1,1,,A,13AF@B00000qdApOoJetQ0i228D9,0*1A";
+
+    private static final int OWN_MMSI = 219517000;
+
+    private static final long TIMEOUT = 5000;
+
+    private AisVirtualNetServer server;
+
+    @After
+    public void shutdown() {
+        if (server != null) {
+            server.getDispatcher().shutdown();
+        }
+    }
+
+    private AisVirtualNetServer server(int ringSize, int batchSize) throws Exception {
+        File users = File.createTempFile("users", ".txt");
+        users.deleteOnExit();
+        Files.write(users.toPath(), "user:secret\n".getBytes(StandardCharsets.UTF_8));
+        ServerConfiguration conf = new ServerConfiguration();
+        conf.setAisbusConfiguration(new AisBusConfiguration());
+        conf.setRingSize(ringSize);
+        conf.setBatchSize(batchSize);
+        conf.setMaxInFlightWrites(1);
+        conf.setSendThreads(1);
+        conf.setBackfillRate(0);
+        server = new AisVirtualNetServer(conf, users.getPath());
+        return server;
+    }
+
+    /**
+     * Open a session authenticated in the handshake and send the first message announcing the capabilities
+     */
+    private FakeRemote connect(Map<String, List<String>> headers, String... capabilities) {
+        Map<String, Object> properties = new HashMap<>();
+        Map<String, List<String>> responseHeaders = new HashMap<>();
+        WebSocketServerSession.handshake(server, properties, headers, responseHeaders);
+        FakeRemote remote = new FakeRemote(properties, responseHeaders);
+        remote.session.onWebSocketConnect(remote.proxy(Session.class));
+        WsMessage hello = new WsMessage();
+        hello.setCapabilities(Arrays.asList(capabilities));
+        remote.session.handleMessage(hello);
+        return remote;
+    }
+
+    private static Map<String, List<String>> login() {
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put(Handshake.USERNAME, Collections.singletonList("user"));
+        headers.put(Handshake.PASSWORD, Collections.singletonList(Password.hashPassword("secret")));
+        headers.put(Handshake.MMSI, Collections.singletonList(Integer.toString(OWN_MMSI)));
+        return headers;
+    }
+
+    private void publish(String packet, int count) {
+        for (int i = 0; i < count; i++) {
+            server.accept(AisPacket.from(packet));
+        }
+    }
+
+    private static void await(FakeRemote remote, int writes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (remote.getWrites() < writes) {
+            Assert.assertTrue("Timed out waiting for " + writes + " writes", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void priorityAheadOfRing() throws Exception {
+        server(64, 1);
+        FakeRemote remote = connect(login());
+        publish(BULK_A, 1);
+        await(remote, 1);
+
+        // The first write is stuck, the priority frame is published after the bulk frames
+        publish(BULK_B, 4);
+        publish(OWN, 1);
+        remote.setCompleting();
+        await(remote, 6);
+        Thread.sleep(50);
+        Assert.assertEquals(Arrays.asList(BULK_A, OWN, BULK_B, BULK_B, BULK_B, BULK_B), remote.getPackets());
+    }
+
+    @Test
+    public void conflatedWhenLapped() throws Exception {
+        server(64, 1);
+        FakeRemote remote = connect(login());
+        publish(BULK_A, 1);
+        await(remote, 1);
+
+        // Caught up while the first write is stuck, several times the ring
+        for (int i = 0; i < 10; i++) {
+            publish(BULK_A, 10);
+            publish(BULK_B, 10);
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            while (remote.session.getMetrics().getRingLag() >= 32) {
+                Assert.assertTrue(System.currentTimeMillis() < deadline);
+                Thread.sleep(1);
+            }
+        }
+        Assert.assertTrue(remote.session.getMetrics().getConflated() > 0);
+        Assert.assertEquals(0, remote.session.getMetrics().getDropped());
+        Assert.assertEquals(2, remote.session.getMetrics().getPending());
+
+        // The latest position of each target, then what is left in the ring
+        long lag = remote.session.getMetrics().getRingLag();
+        remote.setCompleting();
+        await(remote, 3 + (int) lag);
+        Thread.sleep(50);
+        Assert.assertEquals(3 + lag, remote.getWrites());
+        Assert.assertFalse(remote.isClosed());
+    }
+
+    @Test
+    public void resumeSkipsReceivedPriority() throws Exception {
+        server(64, 3);
+        FakeRemote first = connect(login(), WsMessage.CAPABILITY_BATCH, WsMessage.CAPABILITY_RESUME);
+        String token = first.responseHeaders.get(Handshake.TOKEN).get(0);
+        publish(BULK_A, 1);
+        await(first, 1);
+
+        // Priority frame sent ahead of the bulk frames published before it, in a batch acknowledging it
+        publish(BULK_B, 5);
+        publish(OWN, 1);
+        first.completePending();
+        await(first, 2);
+        Assert.assertEquals(Arrays.asList(BULK_A, OWN, BULK_B, BULK_B), first.getPackets());
+        long sequence = first.getSequence();
+        Assert.assertEquals(3, sequence);
+        first.session.onWebSocketClose(null);
+
+        // Resumed from the last sequence number received
+        Map<String, List<String>> headers = new HashMap<>();
+        headers.put(Handshake.USERNAME, Collections.singletonList("user"));
+        headers.put(Handshake.MMSI, Collections.singletonList(Integer.toString(OWN_MMSI)));
+        headers.put(Handshake.RESUME_TOKEN, Collections.singletonList(token));
+        headers.put(Handshake.RESUME_SEQUENCE, Collections.singletonList(Long.toString(sequence)));
+        FakeRemote second = connect(headers, WsMessage.CAPABILITY_BATCH, WsMessage.CAPABILITY_RESUME);
+        Assert.assertEquals(Collections.singletonList("true"), second.responseHeaders.get(Handshake.RESUMED));
+        second.setCompleting();
+        publish(BULK_A, 1);
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (second.getPackets().size() < 4) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        Assert.assertEquals(Arrays.asList(BULK_B, BULK_B, BULK_B, BULK_A), second.getPackets());
+    }
+
+    /**
+     * A session with a fake connection. Writes are recorded when started, and completed at once only when completing.
+     */
+    private class FakeRemote implements InvocationHandler {
+        final WebSocketServerSession session = new WebSocketServerSession(server);
+
+        final Map<String, Object> properties;
+
+        final Map<String, List<String>> responseHeaders;
+
+        private final List<WsMessage> messages = new ArrayList<>();
+
+        private final List<SendHandler> pending = new ArrayList<>();
+
+        private boolean completing;
+
+        private boolean closed;
+
+        FakeRemote(Map<String, Object> properties, Map<String, List<String>> responseHeaders) {
+            this.properties = properties;
+            this.responseHeaders = responseHeaders;
+        }
+
+        <T> T proxy(Class<T> type) {
+            return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, this));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+            case "getUserProperties":
+                return properties;
+            case "getAsyncRemote":
+                return proxy(RemoteEndpoint.Async.class);
+            case "sendText":
+                write(WsMessageCodec.decode((String) args[0]), (SendHandler) args[1]);
+                return null;
+            case "sendBinary":
+                throw new UnsupportedOperationException("Binary frames not announced: " + (ByteBuffer) args[0]);
+            case "close":
+                synchronized (this) {
+                    closed = true;
+                }
+                return null;
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "FakeRemote";
+            default:
+                return null;
+            }
+        }
+
+        private void write(WsMessage message, SendHandler handler) {
+            synchronized (this) {
+                messages.add(message);
+                if (!completing) {
+                    pending.add(handler);
+                    return;
+                }
+            }
+            handler.onResult(new SendResult());
+        }
+
+        /**
+         * Complete the pending writes and the following writes at once
+         */
+        void setCompleting() {
+            synchronized (this) {
+                completing = true;
+            }
+            completePending();
+        }
+
+        /**
+         * Complete the pending writes, the following writes are left pending unless completing
+         */
+        void completePending() {
+            List<SendHandler> handlers;
+            synchronized (this) {
+                handlers = new ArrayList<>(pending);
+                pending.clear();
+            }
+            for (SendHandler handler : handlers) {
+                handler.onResult(new SendResult());
+            }
+        }
+
+        synchronized int getWrites() {
+            return messages.size();
+        }
+
+        synchronized boolean isClosed() {
+            return closed;
+        }
+
+        /**
+         * Packets written, in order
+         */
+        synchronized List<String> getPackets() {
+            List<String> packets = new ArrayList<>();
+            for (WsMessage message : messages) {
+                if (message.getBatch() != null) {
+                    for (WsMessage m : message.getBatch()) {
+                        packets.add(m.getPacket());
+                    }
+                } else if (message.getPacket() != null) {
+                    packets.add(message.getPacket());
+                }
+            }
+            return packets;
+        }
+
+        /**
+         * Last sequence number written
+         */
+        synchronized long getSequence() {
+            long sequence = -1;
+            for (WsMessage message : messages) {
+                if (message.getSequence() != null) {
+                    sequence = message.getSequence();
+                }
+            }
+            return sequence;
+        }
+    }
+
+}
@@ -0,0 +1,47 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.server.rest;
+
+import javax.ws.rs.core.EntityTag;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RestServiceTest {
+
+    @Test
+    public void acceptsGzip() {
+        Assert.assertFalse(RestService.acceptsGzip(null));
+        Assert.assertTrue(RestService.acceptsGzip("gzip, deflate"));
+        Assert.assertTrue(RestService.acceptsGzip("deflate;q=1.0, GZIP;q=0.5"));
+        Assert.assertFalse(RestService.acceptsGzip("gzip;q=0"));
+        Assert.assertFalse(RestService.acceptsGzip("gzip; q=0.0, identity"));
+        Assert.assertFalse(RestService.acceptsGzip("deflate"));
+        Assert.assertTrue(RestService.acceptsGzip("*"));
+        Assert.assertFalse(RestService.acceptsGzip("gzip;q=0, *"));
+    }
+
+    @Test
+    public void matches() {
+        EntityTag etag = new EntityTag("42-1f");
+        Assert.assertFalse(RestService.matches(null, etag));
+        Assert.assertTrue(RestService.matches("\"42-1f\"", etag));
+        Assert.assertTrue(RestService.matches("\"1\", W/\"42-1f\"", etag));
+        Assert.assertTrue(RestService.matches("*", etag));
+        Assert.assertFalse(RestService.matches("\"42-1f-gzip\"", etag));
+        Assert.assertFalse(RestService.matches("\"42\"", etag));
+    }
+
+}
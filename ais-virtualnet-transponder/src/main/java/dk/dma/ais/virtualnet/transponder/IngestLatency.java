@@ -0,0 +1,97 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.transponder;
+
+import java.util.concurrent.TimeUnit;
+
+import net.jcip.annotations.ThreadSafe;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.ais.virtualnet.common.metrics.LatencyHistogram;
+
+/**
+ * Latency from the server receiving a packet until it has been written to the client. The server stamps packets with
+ * its own clock. Unless the clocks are synchronized, the server clock is followed like the stream time for the PSTT
+ * sentences, using the smallest difference seen as the offset between the clocks. Latencies are then measured
+ * relative to the fastest packet.
+ */
+@ThreadSafe
+public class IngestLatency {
+
+    private static final Logger LOG = LoggerFactory.getLogger(IngestLatency.class);
+
+    private static final long LOG_INTERVAL = 60 * 1000; // 1 min
+
+    private final boolean clocksSynchronized;
+
+    /**
+     * Nanoseconds from ingest to written to the client
+     */
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private final StreamTime serverTime = new StreamTime();
+
+    private long minDelta = Long.MAX_VALUE;
+
+    private long lastLogged = System.currentTimeMillis();
+
+    public IngestLatency(boolean clocksSynchronized) {
+        this.clocksSynchronized = clocksSynchronized;
+    }
+
+    /**
+     * Record a packet written to the client
+     * 
+     * @param ingestTime
+     *            time on the server clock when the server received the packet
+     */
+    public synchronized void record(long ingestTime) {
+        long now = System.currentTimeMillis();
+        long latency;
+        if (clocksSynchronized) {
+            latency = now - ingestTime;
+        } else {
+            if (now - ingestTime < minDelta) {
+                minDelta = now - ingestTime;
+                serverTime.setStreamTime(ingestTime);
+            }
+            latency = serverTime.getTime() - ingestTime;
+        }
+        histogram.record(TimeUnit.MILLISECONDS.toNanos(latency));
+        if (now - lastLogged > LOG_INTERVAL) {
+            lastLogged = now;
+            LOG.info(toString());
+        }
+    }
+
+    public LatencyHistogram getHistogram() {
+        return histogram;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Latency from ingest: %d packets, 50%% %d ms, 99%% %d ms, 99.9%% %d ms, max %d ms",
+                histogram.getCount(), millis(histogram.getValueAtPercentile(50)),
+                millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMax()));
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+}
@@ -20,6 +20,7 @@ import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.UriBuilder;
 
+import org.glassfish.jersey.message.GZipEncoder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -37,13 +38,22 @@ public class RestClient {
 
     private final WebTarget service;
 
+    /**
+     * Last password hashed and its hash. A password is hashed once per client, so the server can recognize
+     * credentials it has already checked instead of running bcrypt for every request.
+     */
+    private String password;
+    private String hashed;
+
     public RestClient(String hostname, int port) {
         Client client = ClientBuilder.newClient();
+        // Decodes compressed responses
+        client.register(GZipEncoder.class);
         service = client.target(UriBuilder.fromUri(String.format("http://%s:%d/rest", hostname, port)).build());
     }
 
     public AuthenticationReplyMessage authenticate(String username, String password) throws RestException {
-        String hashed = Password.hashPassword(password);
+        String hashed = hash(password);
         LOG.info("Authenticate username: " + username + " password: " + hashed);
         try {
             return service.path("authenticate").queryParam("username", username)
@@ -66,16 +76,47 @@ public class RestClient {
     }
 
     public TargetTableMessage getTargetTable(String username, String password) throws RestException {
-        String hashed = Password.hashPassword(password);
+        return getTargetTable(username, password, null);
+    }
+
+    /**
+     * Get the targets changed since the given version, or the full table if since is null
+     * 
+     * @param username
+     * @param password
+     * @param since
+     * @return
+     * @throws RestException
+     */
+    public TargetTableMessage getTargetTable(String username, String password, Long since) throws RestException {
+        String hashed = hash(password);
         try {
-            return service.path("target_table").queryParam("username", username)
-                    .queryParam("password", hashed).request(MediaType.APPLICATION_JSON).get(TargetTableMessage.class);
+            WebTarget target = service.path("target_table").queryParam("username", username)
+                    .queryParam("password", hashed);
+            if (since != null) {
+                target = target.queryParam("since", Long.toString(since));
+            }
+            return target.request(MediaType.APPLICATION_JSON).acceptEncoding("gzip").get(TargetTableMessage.class);
         } catch (Exception e) {
             LOG.error("RestClient failed: " + e.getMessage());
             throw new RestException(e);
         }
     }
 
+    /**
+     * Hash the password, reusing the hash if the password is the one last hashed
+     * 
+     * @param password
+     * @return
+     */
+    synchronized String hash(String password) {
+        if (hashed == null || !password.equals(this.password)) {
+            hashed = Password.hashPassword(password);
+            this.password = password;
+        }
+        return hashed;
+    }
+
     public String test() {
         try {
             return service.path("test").request(MediaType.TEXT_PLAIN).get(String.class);
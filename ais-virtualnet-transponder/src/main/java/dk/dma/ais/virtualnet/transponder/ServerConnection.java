@@ -15,9 +15,15 @@
 package dk.dma.ais.virtualnet.transponder;
 
 import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import javax.websocket.ClientEndpointConfig;
 import javax.websocket.ContainerProvider;
+import javax.websocket.Extension;
+import javax.websocket.HandshakeResponse;
 import javax.websocket.WebSocketContainer;
 
 import org.slf4j.Logger;
@@ -27,6 +33,10 @@ import dk.dma.ais.packet.AisPacket;
 import dk.dma.ais.virtualnet.common.message.AuthenticationReplyMessage;
 import dk.dma.ais.virtualnet.common.message.ReserveMmsiReplyMessage;
 import dk.dma.ais.virtualnet.common.message.ReserveMmsiReplyMessage.ReserveResult;
+import dk.dma.ais.virtualnet.common.message.Subscription;
+import dk.dma.ais.virtualnet.common.websocket.Handshake;
+import dk.dma.ais.virtualnet.common.websocket.PerMessageDeflate;
+import dk.dma.enav.model.geometry.Position;
 
 /**
  * Class that maintains the connection to the server
@@ -35,11 +45,49 @@ public class ServerConnection extends Thread {
 
     private static final Logger LOG = LoggerFactory.getLogger(ServerConnection.class);
 
+    /**
+     * Part of the receive radius own ship can move before the subscription is moved. The subscribed radius is
+     * extended by the same amount, so the receive radius is always covered.
+     */
+    private static final double SUBSCRIPTION_MARGIN = 0.1;
+
     private final Transponder transponder;
     private final TransponderConfiguration conf;
 
     private volatile WebSocketClientSession session;
 
+    /**
+     * Set when the server turns out not to authenticate in the WebSocket handshake, so authentication and MMSI
+     * reservation is done over REST
+     */
+    private volatile boolean handshakeUnsupported;
+
+    /**
+     * Set when the server has confirmed the subscription of the current session, so traffic is filtered by the
+     * server
+     */
+    private volatile boolean serverFiltering;
+
+    /**
+     * Token of the current or last session, to resume it with after a drop
+     */
+    private volatile String resumeToken;
+
+    /**
+     * Sequence number from the server that everything before has been received, or -1
+     */
+    private volatile long resumeSequence = -1;
+
+    /**
+     * Client for REST requests, made when first needed
+     */
+    private RestClient restClient;
+
+    /**
+     * Last subscription sent to the server
+     */
+    private volatile Subscription subscription;
+
     public ServerConnection(Transponder transponder, TransponderConfiguration conf) {
         this.transponder = transponder;
         this.conf = conf;
@@ -58,10 +106,83 @@ public class ServerConnection extends Thread {
      * Receive message from the server
      * 
      * @param packet
+     * @param ingestTime
+     *            time on the server clock when the server received the packet, or null
+     * @param timestamp
+     *            time of the packet if not given by the packet itself, or null
+     */
+    public void receive(String packet, Long ingestTime, Long timestamp) {
+        transponder.receive(packet, ingestTime, timestamp);
+
+    }
+
+    /**
+     * Remember how far the server has got, so the packets after this can be replayed if the session drops
+     * 
+     * @param sequence
+     */
+    public void setResumeSequence(long sequence) {
+        resumeSequence = sequence;
+    }
+
+    /**
+     * Tell that the server has applied the subscription of the current session
+     */
+    public void subscriptionConfirmed() {
+        if (!serverFiltering) {
+            LOG.info("Server filtering on the subscription");
+            serverFiltering = true;
+            transponder.forgetPositions();
+        }
+    }
+
+    /**
+     * Determine if the server filters traffic on the subscription, so messages without a position can be trusted to
+     * be within it
+     * 
+     * @return
      */
-    public void receive(String packet) {
-        transponder.receive(packet);
+    public boolean isServerFiltering() {
+        return serverFiltering;
+    }
 
+    /**
+     * Make subscription for the current own position. Null if the transponder does not filter on distance.
+     * 
+     * @return
+     */
+    public Subscription createSubscription() {
+        int radius = conf.getReceiveRadius();
+        if (radius <= 0) {
+            return null;
+        }
+        Position ownPos = transponder.getStatus().getOwnPos();
+        Subscription s = new Subscription(null, null, radius * (1 + SUBSCRIPTION_MARGIN));
+        if (ownPos != null) {
+            s.setLat(ownPos.getLatitude());
+            s.setLon(ownPos.getLongitude());
+        }
+        subscription = s;
+        return s;
+    }
+
+    /**
+     * Move the subscription if own ship has moved too far from its center
+     * 
+     * @param ownPos
+     */
+    public void ownPositionChanged(Position ownPos) {
+        Subscription s = subscription;
+        WebSocketClientSession sess = session;
+        if (s == null || sess == null || !transponder.getStatus().isServerConnected()) {
+            return;
+        }
+        if (s.hasPosition()
+                && ownPos.rhumbLineDistanceTo(Position.create(s.getLat(), s.getLon())) <= conf.getReceiveRadius()
+                        * SUBSCRIPTION_MARGIN) {
+            return;
+        }
+        sess.sendSubscription(createSubscription());
     }
 
     public void shutdown() {
@@ -80,9 +201,15 @@ public class ServerConnection extends Thread {
         return conf;
     }
 
+    private synchronized RestClient getRestClient() {
+        if (restClient == null) {
+            restClient = new RestClient(conf.getServerHost(), conf.getServerPort());
+        }
+        return restClient;
+    }
+
     private String authenticate() {
-        // Make rest client
-        RestClient restClient = new RestClient(conf.getServerHost(), conf.getServerPort());
+        RestClient restClient = getRestClient();
         // Try to authenticate
         AuthenticationReplyMessage authReply;
         try {
@@ -100,8 +227,7 @@ public class ServerConnection extends Thread {
     }
 
     public boolean reserveMmsi(int mmsi, String authToken) {
-        // Make rest client
-        RestClient restClient = new RestClient(conf.getServerHost(), conf.getServerPort());
+        RestClient restClient = getRestClient();
         ReserveMmsiReplyMessage reply;
         try {
             reply = restClient.reserveMmsi(mmsi, authToken);
@@ -119,30 +245,99 @@ public class ServerConnection extends Thread {
         return true;
     }
 
+    /**
+     * Connect the web socket
+     * 
+     * @param authToken
+     *            token to authenticate with, or null to authenticate and reserve MMSI in the handshake
+     */
     private void makeSession(String authToken) {
         // Make session
-        session = new WebSocketClientSession(this, authToken);
+        final WebSocketClientSession sess = new WebSocketClientSession(this, authToken);
+        session = sess;
+        // Until the new session confirms the subscription
+        serverFiltering = false;
         // Make client and connect
 
         WebSocketContainer client = ContainerProvider.getWebSocketContainer();
+        List<Extension> extensions = conf.isCompression() ? Collections
+                .<Extension> singletonList(new PerMessageDeflate(conf.isCompressionContextTakeover())) : Collections
+                .<Extension> emptyList();
+        ClientEndpointConfig.Builder builder = ClientEndpointConfig.Builder.create().extensions(extensions);
+        if (authToken == null) {
+            builder.configurator(new ClientEndpointConfig.Configurator() {
+                @Override
+                public void beforeRequest(Map<String, List<String>> headers) {
+                    headers.put(Handshake.USERNAME, Collections.singletonList(conf.getUsername()));
+                    String hashed = getRestClient().hash(conf.getPassword());
+                    headers.put(Handshake.PASSWORD, Collections.singletonList(hashed));
+                    headers.put(Handshake.MMSI, Collections.singletonList(Integer.toString(conf.getOwnMmsi())));
+                    // The server falls back to the credentials if the session cannot be resumed
+                    String token = resumeToken;
+                    long sequence = resumeSequence;
+                    if (token != null && sequence >= 0) {
+                        headers.put(Handshake.RESUME_TOKEN, Collections.singletonList(token));
+                        headers.put(Handshake.RESUME_SEQUENCE, Collections.singletonList(Long.toString(sequence)));
+                    }
+                }
+
+                @Override
+                public void afterResponse(HandshakeResponse response) {
+                    Map<String, List<String>> headers = response.getHeaders();
+                    sess.setHandshakeResult(Handshake.getHeader(headers, Handshake.RESULT));
+                    resumeToken = Handshake.getHeader(headers, Handshake.TOKEN);
+                    if ("true".equals(Handshake.getHeader(headers, Handshake.RESUMED))) {
+                        LOG.info("Resuming session from sequence " + resumeSequence);
+                    } else {
+                        // Joined anew, packets before the join must not be replayed later
+                        resumeSequence = -1;
+                    }
+                }
+            });
+        }
+        ClientEndpointConfig config = builder.build();
 
         String serverUrl = conf.createServerUrl();
         try {
-            client.connectToServer(session, new URI(serverUrl));
-            if (!session.getConnected().await(10, TimeUnit.SECONDS)) {
+            client.connectToServer(sess.getEndpoint(), config, new URI(serverUrl));
+            if (!sess.getConnected().await(10, TimeUnit.SECONDS)) {
                 LOG.error("Connection timeout");
                 transponder.getStatus().setServerError("Connection timeout");
-                session.close();
+                sess.close();
+            } else if (authToken == null && !handshakeAccepted(sess)) {
+                sess.close();
             } else {
                 transponder.getStatus().setServerConnected(true);
                 transponder.getStatus().setServerError(null);
             }
         } catch (Exception e) {
-            transponder.getStatus().setServerError("Failed to connect web socket: " + e.getMessage() + " url: " + serverUrl);
+            transponder.getStatus().setServerError(
+                    "Failed to connect web socket: " + e.getMessage() + " url: " + serverUrl);
             LOG.error(transponder.getStatus().getServerError());
         }
     }
 
+    /**
+     * Check the result of authenticating and reserving MMSI in the handshake
+     * 
+     * @param session
+     * @return
+     */
+    private boolean handshakeAccepted(WebSocketClientSession session) {
+        String result = session.getHandshakeResult();
+        if (result == null) {
+            LOG.info("Server does not authenticate in the handshake, using REST");
+            handshakeUnsupported = true;
+            return false;
+        }
+        if (!result.equals(ReserveResult.MMSI_RESERVED.name())) {
+            LOG.info("Handshake failed: " + result);
+            transponder.getStatus().setServerError(result);
+            return false;
+        }
+        return true;
+    }
+
     @Override
     public void run() {
         while (true) {
@@ -151,13 +346,21 @@ public class ServerConnection extends Thread {
             }
             transponder.getStatus().setServerConnected(false);
 
-            String authToken = authenticate();
+            if (handshakeUnsupported) {
+                String authToken = authenticate();
 
-            if (authToken != null) {
-                // Try to reserver MMSI and make session
-                if (reserveMmsi(conf.getOwnMmsi(), authToken)) {
-                    // Make session
-                    makeSession(authToken);
+                if (authToken != null) {
+                    // Try to reserver MMSI and make session
+                    if (reserveMmsi(conf.getOwnMmsi(), authToken)) {
+                        // Make session
+                        makeSession(authToken);
+                    }
+                }
+            } else {
+                // Authenticate and reserve MMSI in the handshake
+                makeSession(null);
+                if (handshakeUnsupported) {
+                    continue;
                 }
             }
 
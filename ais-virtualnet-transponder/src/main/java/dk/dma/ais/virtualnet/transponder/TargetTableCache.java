@@ -0,0 +1,86 @@
+/* Copyright (c) 2011 Danish Maritime Authority.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dk.dma.ais.virtualnet.transponder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.jcip.annotations.ThreadSafe;
+import dk.dma.ais.virtualnet.common.message.TargetTableMessage;
+import dk.dma.ais.virtualnet.common.table.TargetTableEntry;
+
+/**
+ * Copy of the target table of a server. After the first fetch only the changes are fetched from the server.
+ */
+@ThreadSafe
+public class TargetTableCache {
+
+    private final String host;
+    private final int port;
+    private final RestClient restClient;
+
+    private final Map<Integer, TargetTableEntry> targets = new HashMap<>();
+
+    /**
+     * Version of the table held, null before the first fetch
+     */
+    private Long version;
+
+    public TargetTableCache(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.restClient = new RestClient(host, port);
+    }
+
+    /**
+     * Fetch changes from the server and return the alive targets
+     * 
+     * @param username
+     * @param password
+     * @return
+     * @throws RestException
+     */
+    public synchronized List<TargetTableEntry> update(String username, String password) throws RestException {
+        apply(restClient.getTargetTable(username, password, version));
+        return new ArrayList<>(targets.values());
+    }
+
+    synchronized void apply(TargetTableMessage message) {
+        if (!message.isDelta()) {
+            targets.clear();
+        }
+        for (Integer mmsi : message.getExpired()) {
+            targets.remove(mmsi);
+        }
+        for (TargetTableEntry target : message.getTargets()) {
+            targets.put(target.getMmsi(), target);
+        }
+        version = message.getVersion();
+    }
+
+    /**
+     * Return if the cache holds the table of the given server
+     * 
+     * @param host
+     * @param port
+     * @return
+     */
+    public boolean isFor(String host, int port) {
+        return this.host.equals(host) && this.port == port;
+    }
+
+}
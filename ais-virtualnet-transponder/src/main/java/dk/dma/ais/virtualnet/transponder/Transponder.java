@@ -64,7 +64,11 @@ public class Transponder extends Thread {
     private final StreamTime psttSender;
     private final VdmVdoTransformer vdoTransformer;
     private final CropVdmTransformer cropTransformer;
+    private final IngestLatency ingestLatency;
 
+    /**
+     * Last positions of the targets, to filter messages without a position until the server filters for us
+     */
     private final ConcurrentHashMap<Integer, Position> positions = new ConcurrentHashMap<>();
 
     private volatile Socket socket;
@@ -82,6 +86,7 @@ public class Transponder extends Thread {
         ownMessage = new TransponderOwnMessage(this, conf.getOwnPosInterval());
         vdoTransformer = new VdmVdoTransformer(conf.getOwnMmsi(), "AI");
         cropTransformer = new CropVdmTransformer();
+        ingestLatency = new IngestLatency(conf.isClocksSynchronized());
         if (conf.isSendPsttSentence()) {
             psttSender = new StreamTime();
         } else {
@@ -89,12 +94,32 @@ public class Transponder extends Thread {
         }
     }
 
+    /**
+     * Forget the last positions of the targets, once the server filters for us
+     */
+    void forgetPositions() {
+        positions.clear();
+    }
+
     /**
      * Data received from network
      * 
      * @param packet
      */
     public void receive(String strPacket) {
+        receive(strPacket, null, null);
+    }
+
+    /**
+     * Data received from network
+     * 
+     * @param packet
+     * @param ingestTime
+     *            time on the server clock when the server received the packet, or null if not traced
+     * @param streamTimestamp
+     *            time of the packet if sent without the sentences carrying it, or null
+     */
+    public void receive(String strPacket, Long ingestTime, Long streamTimestamp) {
         // Make packet and get ais message
         AisPacket packet = AisPacket.from(strPacket);
         AisMessage message;
@@ -104,9 +129,16 @@ public class Transponder extends Thread {
             LOG.debug("Failed to parse message: " + e.getMessage());
             return;
         }
+        if (message == null) {
+            LOG.debug("No message in packet: " + strPacket);
+            return;
+        }
 
         // Try to get timestamp and maybe send PSTT time sentence
         Date timestamp = packet.getTimestamp();
+        if (timestamp == null && streamTimestamp != null) {
+            timestamp = new Date(streamTimestamp);
+        }
         if (psttSender != null && timestamp != null) {
             psttSender.setStreamTime(timestamp.getTime());
             if (psttSender.isDue()) {
@@ -159,15 +191,18 @@ public class Transponder extends Thread {
                 // Save own position if valid
                 if (posMsg.isPositionValid()) {
                     status.setOwnPos(posMsg.getPos().getGeoLocation());
+                    serverConnection.ownPositionChanged(status.getOwnPos());
                 }
             } else {
                 // Is this message valid and within radius
                 if (!posMsg.isPositionValid()) {
                     return;
                 }
-                // Save position
                 position = posMsg.getPos().getGeoLocation();
-                positions.put(message.getUserId(), position);
+                // Save position while needed for filtering
+                if (!serverConnection.isServerFiltering()) {
+                    positions.put(message.getUserId(), position);
+                }
             }
         }
 
@@ -176,20 +211,24 @@ public class Transponder extends Thread {
             if (status.getOwnPos() == null) {
                 return;
             }
-            // Try to get position
-            if (position == null) {
+            // Once the server has confirmed the subscription, messages without a position are known to be placed
+            // within it. Before that, or with a server not filtering, the last position of the target is used.
+            if (position == null && !serverConnection.isServerFiltering()) {
                 position = positions.get(message.getUserId());
+                if (position == null) {
+                    return;
+                }
             }
-            if (position == null) {
-                return;
-            }
-            if (position.rhumbLineDistanceTo(status.getOwnPos()) > conf.getReceiveRadius()) {
+            if (position != null && position.rhumbLineDistanceTo(status.getOwnPos()) > conf.getReceiveRadius()) {
                 return;
             }
         }
 
         if (status.isClientConnected()) {
             send(packet.getStringMessage());
+            if (ingestTime != null) {
+                ingestLatency.record(ingestTime);
+            }
         }
 
     }
@@ -397,4 +436,8 @@ public class Transponder extends Thread {
         return status;
     }
 
+    public IngestLatency getIngestLatency() {
+        return ingestLatency;
+    }
+
 }
@@ -37,6 +37,9 @@ public class TransponderConfiguration {
     private String username;
     private String password;
     private boolean sendPsttSentence = true;
+    private boolean clocksSynchronized;
+    private boolean compression = true;
+    private boolean compressionContextTakeover = true;
 
     public TransponderConfiguration() {
 
@@ -117,6 +120,34 @@ public class TransponderConfiguration {
     public void setSendPsttSentence(boolean sendPsttSentence) {
         this.sendPsttSentence = sendPsttSentence;
     }
+
+    /**
+     * If the clocks of the server and the transponder are synchronized, so latencies can be measured absolutely
+     * @return
+     */
+    public boolean isClocksSynchronized() {
+        return clocksSynchronized;
+    }
+
+    public void setClocksSynchronized(boolean clocksSynchronized) {
+        this.clocksSynchronized = clocksSynchronized;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public boolean isCompressionContextTakeover() {
+        return compressionContextTakeover;
+    }
+
+    public void setCompressionContextTakeover(boolean compressionContextTakeover) {
+        this.compressionContextTakeover = compressionContextTakeover;
+    }
     
     public static void save(String filename, TransponderConfiguration conf) throws JAXBException, FileNotFoundException {
         JAXBContext context = JAXBContext.newInstance(TransponderConfiguration.class);
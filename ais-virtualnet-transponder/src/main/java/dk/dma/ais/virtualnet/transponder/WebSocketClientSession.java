@@ -14,40 +14,121 @@
  */
 package dk.dma.ais.virtualnet.transponder;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.CountDownLatch;
 
-import javax.websocket.ClientEndpoint;
 import javax.websocket.CloseReason;
-import javax.websocket.OnClose;
-import javax.websocket.OnOpen;
+import javax.websocket.Endpoint;
+import javax.websocket.EndpointConfig;
+import javax.websocket.MessageHandler;
 import javax.websocket.Session;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import dk.dma.ais.packet.AisPacket;
+import dk.dma.ais.virtualnet.common.message.Subscription;
 import dk.dma.ais.virtualnet.common.message.WsMessage;
 import dk.dma.ais.virtualnet.common.websocket.WebSocketSession;
 
-@ClientEndpoint
 public class WebSocketClientSession extends WebSocketSession {
 
+    private static final Logger LOG = LoggerFactory.getLogger(WebSocketClientSession.class);
+
     private final CountDownLatch closed = new CountDownLatch(1);
 
     private final ServerConnection connection;
     private final String authToken;
 
+    /**
+     * Result of authenticating in the handshake, or null if the server did not answer
+     */
+    private volatile String handshakeResult;
+
+    /**
+     * @param connection
+     * @param authToken
+     *            token to authenticate with, or null if authenticating in the handshake
+     */
     public WebSocketClientSession(ServerConnection connection, String authToken) {
         this.connection = connection;
         this.authToken = authToken;
     }
 
-    @OnOpen
+    /**
+     * Endpoint passing the events of the connection on to this session. Connecting the endpoint rather than the
+     * session allows the connection to be configured, e.g. with the extensions to offer.
+     * 
+     * @return
+     */
+    public Endpoint getEndpoint() {
+        return new Endpoint() {
+            @Override
+            public void onOpen(Session session, EndpointConfig config) {
+                session.addMessageHandler(new MessageHandler.Whole<String>() {
+                    @Override
+                    public void onMessage(String message) {
+                        onWebSocketText(message);
+                    }
+                });
+                session.addMessageHandler(new MessageHandler.Whole<ByteBuffer>() {
+                    @Override
+                    public void onMessage(ByteBuffer payload) {
+                        onWebSocketBinary(payload);
+                    }
+                });
+                onWebSocketConnect(session);
+            }
+
+            @Override
+            public void onClose(Session session, CloseReason closeReason) {
+                onWebSocketClose(closeReason);
+            }
+
+            @Override
+            public void onError(Session session, Throwable t) {
+                onWebSocketError(t);
+            }
+        };
+    }
+
+    @Override
     public void onWebSocketConnect(Session session) {
         super.onWebSocketConnect(session);
         // Send credentials
         WsMessage msg = new WsMessage();
         msg.setAuthToken(authToken);
+        if (authToken == null) {
+            // Authenticated in the handshake, which is also where a dropped session is resumed
+            msg.setCapabilities(Arrays.asList(WsMessage.CAPABILITY_BATCH, WsMessage.CAPABILITY_BINARY,
+                    WsMessage.CAPABILITY_FILTER, WsMessage.CAPABILITY_RESUME));
+        } else {
+            msg.setCapabilities(Arrays.asList(WsMessage.CAPABILITY_BATCH, WsMessage.CAPABILITY_BINARY,
+                    WsMessage.CAPABILITY_FILTER));
+        }
+        msg.setSubscription(connection.createSubscription());
+        sendMessage(msg);
+    }
+
+    /**
+     * Move the area to receive traffic from
+     * 
+     * @param subscription
+     */
+    public synchronized void sendSubscription(Subscription subscription) {
+        WsMessage msg = new WsMessage();
+        msg.setSubscription(subscription);
         sendMessage(msg);
     }
 
-    @OnClose
+    @Override
+    public synchronized void sendPacket(AisPacket packet) {
+        // Subscriptions are sent from the receiving thread
+        super.sendPacket(packet);
+    }
+
+    @Override
     public void onWebSocketClose(CloseReason  reason) {
         super.onWebSocketClose(reason);
         closed.countDown();
@@ -55,10 +136,37 @@ public class WebSocketClientSession extends WebSocketSession {
 
     @Override
     protected void handleMessage(WsMessage wsMessage) {
-        connection.receive(wsMessage.getPacket());
+        if (wsMessage.getBatch() != null) {
+            for (WsMessage msg : wsMessage.getBatch()) {
+                // A bad packet must not take the rest of the batch with it
+                try {
+                    handleMessage(msg);
+                } catch (RuntimeException e) {
+                    LOG.error("Failed to handle message: " + e.getMessage());
+                }
+            }
+        } else if (wsMessage.getPacket() != null) {
+            connection.receive(wsMessage.getPacket(), wsMessage.getIngestTime(), wsMessage.getTimestamp());
+        }
+        // The server filters everything after this
+        if (wsMessage.getSubscription() != null) {
+            connection.subscriptionConfirmed();
+        }
+        // Everything before the sequence number has been received
+        if (wsMessage.getSequence() != null) {
+            connection.setResumeSequence(wsMessage.getSequence());
+        }
     }
 
     public CountDownLatch getClosed() {
         return closed;
     }
+
+    public String getHandshakeResult() {
+        return handshakeResult;
+    }
+
+    public void setHandshakeResult(String handshakeResult) {
+        this.handshakeResult = handshakeResult;
+    }
 }
@@ -45,10 +45,10 @@ import javax.xml.bind.JAXBException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import dk.dma.ais.virtualnet.common.message.TargetTableMessage;
 import dk.dma.ais.virtualnet.common.table.TargetTableEntry;
 import dk.dma.ais.virtualnet.transponder.ITransponderStatusListener;
 import dk.dma.ais.virtualnet.transponder.RestException;
+import dk.dma.ais.virtualnet.transponder.TargetTableCache;
 import dk.dma.ais.virtualnet.transponder.Transponder;
 import dk.dma.ais.virtualnet.transponder.TransponderConfiguration;
 import dk.dma.ais.virtualnet.transponder.TransponderStatus;
@@ -67,6 +67,7 @@ public class TransponderFrame extends JFrame implements ActionListener, ITranspo
 
     private Transponder transponder;
     private TransponderConfiguration conf;
+    private TargetTableCache targetCache;
 
     // Control buttons
     private final JButton startButton = new JButton("Start");
@@ -264,9 +265,13 @@ public class TransponderFrame extends JFrame implements ActionListener, ITranspo
         Cursor currentCursor = getCursor();
         setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-        TargetTableMessage message;
+        // Only changes are fetched while the server stays the same
+        if (targetCache == null || !targetCache.isFor(conf.getServerHost(), conf.getServerPort())) {
+            targetCache = new TargetTableCache(conf.getServerHost(), conf.getServerPort());
+        }
+        List<TargetTableEntry> targets;
         try {
-            message = Transponder.getTargets(conf.getServerHost(), conf.getServerPort(), conf.getUsername(), conf.getPassword());
+            targets = targetCache.update(conf.getUsername(), conf.getPassword());
         } catch (RestException e) {
             LOG.error("Failed to get list of targets");
             JOptionPane.showMessageDialog(this, "Failed to get list of targets: " + e.getMessage(), "Error",
@@ -277,7 +282,6 @@ public class TransponderFrame extends JFrame implements ActionListener, ITranspo
         setCursor(currentCursor);
 
         // Sort by name
-        List<TargetTableEntry> targets = message.getTargets();
         Collections.sort(targets, new TargetTableEntry.NameSort());
 
         // Show select dialog